@@ -0,0 +1,37 @@
+package com.hmdp.config;
+
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.StringCodec;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 异步秒杀使用的lettuce连接
+ * 一个连接上可以同时发出大量命令 不占用连接池 也不阻塞调用线程
+ */
+@Configuration
+public class LettuceAsyncConfig {
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient seckillRedisClient(RedisProperties redisProperties) {
+        RedisURI.Builder builder = RedisURI.builder()
+                .withHost(redisProperties.getHost())
+                .withPort(redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase());
+        if (StrUtil.isNotBlank(redisProperties.getPassword())) {
+            builder.withPassword(redisProperties.getPassword().toCharArray());
+        }
+        if (redisProperties.getTimeout() != null) {
+            builder.withTimeout(redisProperties.getTimeout());
+        }
+        return RedisClient.create(builder.build());
+    }
+
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, String> seckillAsyncConnection(RedisClient seckillRedisClient) {
+        return seckillRedisClient.connect(StringCodec.UTF8);
+    }
+}
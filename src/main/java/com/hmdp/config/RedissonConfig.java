@@ -1,17 +1,28 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.redisson.config.SingleServerConfig;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RedissonConfig {
+    /**
+     * 与StringRedisTemplate使用同一份spring.redis配置 切换环境时只需修改application.yaml
+     */
     @Bean
-    public RedissonClient redissonClient(){
+    public RedissonClient redissonClient(RedisProperties redisProperties){
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://47.120.6.249:6379").setPassword("965388103");
+        SingleServerConfig serverConfig = config.useSingleServer()
+                .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                .setDatabase(redisProperties.getDatabase());
+        if (StrUtil.isNotBlank(redisProperties.getPassword())) {
+            serverConfig.setPassword(redisProperties.getPassword());
+        }
         return Redisson.create(config);
     }
 }
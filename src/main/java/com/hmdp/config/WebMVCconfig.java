@@ -27,6 +27,10 @@ public class WebMVCconfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login"
                 ).order(1);
+        // 商铺接口整体放行 其中的缓存统计需要登录
+        registry.addInterceptor(new LoginInterceptor())
+                .addPathPatterns("/shop/cache/**")
+                .order(1);
         registry.addInterceptor(new RedisInterceptor(stringRedisTemplate)).order(0);
     }
 
@@ -60,6 +60,15 @@ public class ShopController {
         return shopService.updateShop(shop);
     }
 
+    /**
+     * 查询商铺本地缓存的命中率和耗时 需要登录
+     * @return 缓存统计
+     */
+    @GetMapping("/cache/metrics")
+    public Result queryCacheMetrics() {
+        return shopService.queryCacheMetrics();
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
@@ -9,6 +9,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -35,6 +36,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     /**
      * 发送手机验证码
      */
@@ -90,6 +94,10 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId) {
+        // 布隆过滤器判断一定不存在的用户 不访问数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         User user = userService.getById(userId);
         if (user == null) {
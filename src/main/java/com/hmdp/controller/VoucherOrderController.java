@@ -3,12 +3,16 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -28,4 +32,43 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 异步秒杀 请求线程发出redis命令后立即释放 结果就绪后再写回响应
+     * @param voucherId 优惠券id
+     * @return 订单id或失败原因
+     */
+    @PostMapping("seckill/async/{id}")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillVoucherAsync(voucherId);
+    }
+
+    /**
+     * 一次抢购多张秒杀券 每张券单独返回结果
+     * @param voucherIds 优惠券id列表
+     * @return 每张券的订单id或失败原因
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds) {
+        return voucherOrderService.seckillVouchers(voucherIds);
+    }
+
+    /**
+     * 查询秒杀订单的处理结果 只读redis 供前端轮询
+     * @param orderId 秒杀返回的订单id
+     * @return status 0:排队中 1:已入库 2:失败
+     */
+    @GetMapping("seckill/result/{orderId}")
+    public Result querySeckillResult(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.querySeckillResult(orderId);
+    }
+
+    /**
+     * 查询秒杀准入统计
+     * @return 各优惠券的准入、拒绝、并发数
+     */
+    @GetMapping("seckill/metrics")
+    public Result querySeckillMetrics() {
+        return voucherOrderService.querySeckillMetrics();
+    }
 }
@@ -0,0 +1,24 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量秒杀中单张优惠券的结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillResultDTO {
+    private Long voucherId;
+    /**
+     * 成功时的订单id
+     */
+    private Long orderId;
+    /**
+     * 0:成功 1:库存不足 2:重复下单 3:尚未开始 4:已结束 5:系统繁忙
+     */
+    private Integer code;
+    private String errorMsg;
+}
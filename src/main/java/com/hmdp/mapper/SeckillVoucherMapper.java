@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,26 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 按数量扣减库存 库存不足时不扣减
+     * @param voucherId 优惠券id
+     * @param count 扣减数量
+     * @return 更新行数
+     */
+    int decreaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    /**
+     * 按数量归还库存
+     * @param voucherId 优惠券id
+     * @param count 归还数量
+     * @return 更新行数
+     */
+    int increaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    /**
+     * 一条SQL查询 库存和未取消的订单数 两者来自同一个快照
+     * @param voucherId 优惠券id
+     * @return stock:库存 orders:未取消的订单数 券不存在时为null
+     */
+    Map<String, Object> selectInventory(@Param("voucherId") Long voucherId);
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,31 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 写入订单 与已有订单的id或(voucher_id, user_id)重复时忽略
+     * @param order 订单
+     * @return 写入行数 重复时为0
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 多行insert 一条SQL写入一批订单 重复的订单忽略
+     * @param orders 订单列表
+     * @return 写入行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 用户重新抢购已取消的优惠券时 用新订单覆盖已取消的订单
+     * @param order 新订单
+     * @return 更新行数 已有订单未取消时为0
+     */
+    int reactivateCancelled(VoucherOrder order);
+
+    /**
+     * 取消未支付的订单
+     * @param ids 订单id列表
+     * @return 取消的订单数
+     */
+    int cancelUnpaid(@Param("ids") List<Long> ids);
 }
@@ -18,5 +18,7 @@ public interface IShopService extends IService<Shop> {
 
     Result updateShop(Shop shop);
 
+    Result queryCacheMetrics();
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
 }
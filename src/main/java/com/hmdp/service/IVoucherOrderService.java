@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +19,17 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId);
+
+    Result seckillVouchers(List<Long> voucherIds);
+
+    Result querySeckillResult(Long orderId);
+
+    Result querySeckillMetrics();
+
     void createOrder(VoucherOrder voucherOrder);
+
+    void createOrders(List<VoucherOrder> voucherOrders);
+
+    List<VoucherOrder> cancelExpiredOrders(List<Long> orderIds);
 }
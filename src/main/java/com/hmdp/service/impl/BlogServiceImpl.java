@@ -14,6 +14,7 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -45,9 +46,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IdBloomFilter idBloomFilter;
 
     @Override
     public Result queryBlogByid(Long id) {
+        // 布隆过滤器判断一定不存在的博文 不访问数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)) {
+            return Result.fail("当前博文不存在！");
+        }
         // 从数据库查询博文信息
         Blog blog = getById(id);
         if (blog == null) {
@@ -136,6 +143,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 若未保存成功 则返回消息
             return Result.fail("博文保存失败！");
         }
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
         // 查询粉丝id
         List<Follow> fansIds = followService.lambdaQuery()
                 .eq(Follow::getFollowUserId, user.getId())
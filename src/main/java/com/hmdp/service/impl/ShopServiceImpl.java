@@ -7,8 +7,11 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.LocalCache;
 import com.hmdp.utils.RedisClientUtil;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SingleFlight;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -22,6 +25,7 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -42,22 +46,32 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private RedisClientUtil redisClientUtil;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private LocalCache localCache;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private SingleFlight singleFlight;
 
     private static final ExecutorService CACHE_REBUILD_EXCUTOR = Executors.newFixedThreadPool(10);
 
     /**
      * 查询商铺信息 by ID
-     * 先去Redis中查询 若查询不到 再去数据库查询，然后写到Redis中
+     * 先查本地缓存 再去Redis中查询 若查询不到 再去数据库查询，然后写到Redis中
      * @param id
      * @return
      */
     @Override
     public Result queryById(Long id) {
+        // 布隆过滤器判断一定不存在的商铺 不访问redis和数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.SHOP, id)) {
+            return Result.fail("该商店不存在");
+        }
         // Shop shop = queryByLock(id);  互斥锁
-        // 逻辑过期
-        // Shop shop = queryByLogicExpire(id);
-        Shop shop = redisClientUtil.queryWithRedisPass(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, (id2) -> getById(id2), RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        Shop shop = localCache.get(RedisConstants.CACHE_SHOP_KEY + id, () -> redisClientUtil.queryWithRedisPass(
+                RedisConstants.CACHE_SHOP_KEY, id, Shop.class, (id2) -> getById(id2), RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS));
 
+        // 逻辑过期 提前在后台刷新 热点商铺不会过期
         // Shop shop = redisClientUtil
         //         .queryByLogicExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
         if (shop == null) {
@@ -68,6 +82,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    /**
+     * 新增商铺 写入数据库后加入布隆过滤器
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean saved = super.save(shop);
+        if (saved) {
+            idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
+        }
+        return saved;
+    }
+
     @Override
     @Transactional
     public Result updateShop(Shop shop) {
@@ -80,9 +106,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(shopKey);
         // 更新数据库
         updateById(shop);
+        // 事务提交后通知所有节点删除本地缓存
+        localCache.invalidate(shopKey);
         return Result.ok();
     }
 
+    @Override
+    public Result queryCacheMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("local", localCache.metrics());
+        metrics.put("bloom", idBloomFilter.metrics());
+        metrics.put("singleFlight", singleFlight.metrics());
+        metrics.put("logical", redisClientUtil.metrics());
+        return Result.ok(metrics);
+    }
+
     @Override
     public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
         // 判断是否需要根据经纬度来进行查询
@@ -1,32 +1,73 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillResultDTO;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmissionLimiter;
+import com.hmdp.utils.SeckillOrderExpireQueue;
+import com.hmdp.utils.SeckillOrderRejectedException;
+import com.hmdp.utils.SeckillRedisRouter;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillStockReconciler;
+import com.hmdp.utils.SeckillStreamMonitor;
+import com.hmdp.utils.SeckillWindowCache;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -42,98 +83,591 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
     private RedisIdWorker redisIdWorker;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillSoldOutCache seckillSoldOutCache;
+    @Resource
+    private SeckillWindowCache seckillWindowCache;
+    @Resource
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
+    @Resource
+    private SeckillStreamMonitor seckillStreamMonitor;
+    @Resource
+    private SeckillOrderExpireQueue seckillOrderExpireQueue;
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+    @Resource
+    private SeckillRedisRouter seckillRedisRouter;
     @Resource
     private RedissonClient redissonClient;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<String> SECKILL_SCRIPT;
+
+    /**
+     * 订单状态记录的有效期(秒) 传给秒杀脚本
+     */
+    private static final String STATUS_TTL_SECONDS =
+            String.valueOf(TimeUnit.MINUTES.toSeconds(RedisConstants.SECKILL_ORDER_STATUS_TTL));
+
+    /**
+     * 秒杀脚本返回码的最大值 脚本生成订单id时成功返回的订单id一定大于它
+     */
+    private static final long MAX_SECKILL_CODE = 6;
+
+    /**
+     * 秒杀脚本返回码 5:系统繁忙 只在本地产生
+     */
+    private static final int SECKILL_BUSY_CODE = 5;
+
+    /**
+     * 秒杀脚本返回码 6:redis中没有该券的库存 券不存在或未发布 不标记售罄
+     */
+    private static final int SECKILL_NOT_FOUND_CODE = 6;
+
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+
+    /**
+     * 扫描pending-list时每页读取的消息数
+     */
+    private static final int PENDING_PAGE_SIZE = 100;
+
+    /**
+     * 每次扫描pending-list最多读取的页数 没扫完的部分下次接着扫
+     */
+    private static final int PENDING_SCAN_PAGES = 10;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckillScript.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(String.class);
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckillBatchScript.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
     }
 
     // private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    private static ExecutorService SECKILL_EXCUTORS = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillExcutors;
 
+    /**
+     * 代理对象 消费线程通过它调用事务方法
+     */
+    @Resource
+    @Lazy
     private IVoucherOrderService proxy;
 
+    /**
+     * 异步秒杀同时等待redis的请求数上限
+     */
+    private Semaphore seckillAsyncPermits;
+
+    @Value("${hmdp.seckill.async.max-in-flight:10000}")
+    private int asyncMaxInFlight;
+
+    /**
+     * 处理异步秒杀结果的线程数 结果处理中可能访问redis(广播售罄) 不能放在lettuce或公共线程池中
+     */
+    @Value("${hmdp.seckill.async.callback-threads:4}")
+    private int asyncCallbackThreads;
+
+    /**
+     * 处理异步秒杀结果的线程池 等待的任务数不超过asyncMaxInFlight
+     */
+    private ExecutorService seckillCallbackExecutor;
+
+    /**
+     * 在秒杀脚本中生成订单id 省去一次INCR往返 失败的请求不消耗序号
+     */
+    @Value("${hmdp.seckill.id-in-script:false}")
+    private boolean idInScript;
+
+    /**
+     * 每次从消息队列读取并入库的订单数 不大于1时逐条入库
+     */
+    @Value("${hmdp.seckill.order.batch-size:1}")
+    private int batchSize;
+
+    /**
+     * 每个实例的消费线程数
+     */
+    @Value("${hmdp.seckill.order.consumers:1}")
+    private int consumerCount;
+
+    /**
+     * 实例名 为空时使用 主机名:端口
+     */
+    @Value("${hmdp.seckill.order.consumer-name:}")
+    private String consumerName;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    /**
+     * pending消息空闲超过该时间(毫秒)后 由其他消费者认领
+     */
+    @Value("${hmdp.seckill.order.claim-idle-millis:60000}")
+    private long claimIdleMillis;
+
+    /**
+     * 检查待认领消息的间隔(毫秒)
+     */
+    @Value("${hmdp.seckill.order.claim-interval-millis:30000}")
+    private long claimIntervalMillis;
+
+    /**
+     * 每条消息最多投递次数 超过后转入死信队列
+     */
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 失败消息首次重试的退避时间(毫秒) 之后每次翻倍
+     */
+    @Value("${hmdp.seckill.order.retry-backoff-millis:1000}")
+    private long retryBackoffMillis;
+
+    /**
+     * 最大退避时间(毫秒)
+     */
+    @Value("${hmdp.seckill.order.max-retry-backoff-millis:60000}")
+    private long maxRetryBackoffMillis;
+
+    /**
+     * 扫描自己pending-list的间隔(毫秒)
+     */
+    @Value("${hmdp.seckill.order.retry-interval-millis:1000}")
+    private long retryIntervalMillis;
+
+    /**
+     * 停机时等待消费线程处理完已读取消息的最长时间(毫秒) 超时后中断 未确认的消息留在pending-list中
+     */
+    @Value("${hmdp.seckill.order.shutdown-timeout-millis:10000}")
+    private long shutdownTimeoutMillis;
+
+    /**
+     * 消费线程是否继续读取新消息 停机时置为false
+     */
+    private volatile boolean running;
+
     /**
      * 在类加载完成之后 让线程提交任务
      */
     @PostConstruct
     private void init() {
-        SECKILL_EXCUTORS.submit(new ExcutorTask());
+        if (idInScript && seckillRedisRouter.isMultiNode()) {
+            // 各节点的自增长key互相独立 脚本生成的订单id会重复
+            log.warn("配置了多个秒杀节点 不能在秒杀脚本中生成订单id 改由RedisIdWorker生成");
+            idInScript = false;
+        }
+        String instanceName = StrUtil.isNotBlank(consumerName) ? consumerName : getHostName() + ":" + serverPort;
+        int count = Math.max(consumerCount, 1);
+        List<SeckillRedisRouter.Node> nodes = seckillRedisRouter.nodes();
+        running = true;
+        seckillAsyncPermits = new Semaphore(asyncMaxInFlight);
+        // 每个任务对应一个已申请的名额 队列不会满
+        seckillCallbackExecutor = new ThreadPoolExecutor(asyncCallbackThreads, asyncCallbackThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(asyncMaxInFlight, 1)));
+        // 每个节点 每个消费者一个读取新消息的线程 一个恢复上次停机遗留消息的线程
+        seckillExcutors = Executors.newFixedThreadPool(nodes.size() * count * 2);
+        for (SeckillRedisRouter.Node node : nodes) {
+            // 创建消费者组 stream不存在时一并创建
+            createGroupIfAbsent(node.getTemplate());
+            for (int i = 0; i < count; i++) {
+                // 每个线程使用唯一的消费者名 实例名-线程序号 重启后沿用同一个名字 可以直接读到自己遗留的消息
+                ExcutorTask task = new ExcutorTask(node, instanceName + "-" + i);
+                // 提交前标记为恢复中 避免读取线程先启动时对遗留消息做退避重试
+                task.recovering = true;
+                seckillExcutors.submit(task);
+                seckillExcutors.submit(task::recoverPendingRecords);
+            }
+        }
     }
 
     /**
-     * 线程提交的任务
+     * 停止读取新消息 等待已读取的消息入库并确认
+     */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        seckillCallbackExecutor.shutdown();
+        seckillExcutors.shutdown();
+        if (!seckillExcutors.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("订单消费线程未在{}毫秒内结束 未确认的消息将在重启后恢复", shutdownTimeoutMillis);
+            seckillExcutors.shutdownNow();
+        }
+    }
+
+    private void createGroupIfAbsent(StringRedisTemplate stringRedisTemplate) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    RedisConstants.SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8),
+                    RedisConstants.SECKILL_ORDER_GROUP,
+                    ReadOffset.from("0"),
+                    true
+            ));
+        } catch (Exception e) {
+            // 消费者组已存在
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.fastUUID().toString(true);
+        }
+    }
+
+    /**
+     * 线程提交的任务 消费一个秒杀节点上的订单消息
      */
     private class ExcutorTask implements Runnable {
-        String streamName = "stream.orders";
+        /**
+         * 所在节点的redis 订单消息、死信队列和订单状态记录都在这个节点上
+         */
+        final StringRedisTemplate stringRedisTemplate;
+        final String nodeName;
+        String streamName = RedisConstants.SECKILL_ORDER_STREAM;
+        String groupName = RedisConstants.SECKILL_ORDER_GROUP;
+        Consumer consumer;
+        long lastClaimTime = 0;
+        long lastRetryTime = 0;
+        /**
+         * 自己的pending-list和整个消费组pending-list的扫描位置
+         */
+        final PendingCursor retryCursor;
+        final PendingCursor claimCursor = new PendingCursor(null);
+        /**
+         * 是否正在恢复上次停机遗留的消息 恢复期间不做退避重试 避免重复处理
+         */
+        volatile boolean recovering;
+
+        ExcutorTask(SeckillRedisRouter.Node node, String name) {
+            this.stringRedisTemplate = node.getTemplate();
+            this.nodeName = node.getName();
+            this.consumer = Consumer.from(groupName, name);
+            this.retryCursor = new PendingCursor(consumer);
+        }
 
         @Override
         public void run() {
-            while (true) {
+            while (running && !Thread.currentThread().isInterrupted()) {
                 try {
-                    // 从redis的消息队列中读取数据
+                    // 定期认领宕机消费者遗留的消息
+                    if (System.currentTimeMillis() - lastClaimTime >= claimIntervalMillis) {
+                        lastClaimTime = System.currentTimeMillis();
+                        claimStaleRecords();
+                    }
+                    // 定期重试自己pending-list中到期的消息
+                    if (System.currentTimeMillis() - lastRetryTime >= retryIntervalMillis) {
+                        lastRetryTime = System.currentTimeMillis();
+                        retryPendingRecords();
+                    }
+                    // 从redis的消息队列中读取数据 批量模式下一次最多读取batchSize条
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            consumer,
+                            StreamReadOptions.empty().count(Math.max(batchSize, 1)).block(Duration.ofSeconds(2)),
                             StreamOffset.create(streamName, ReadOffset.lastConsumed())
                     );
                     // 判断是否读取到消息 若未读取 进行下一次读取操作
                     if (list == null || list.isEmpty()) {
                         continue;
                     }
-                    // 从消息中获取数据  因为只读了一条 所以用get(0)
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    // 从获取的数据中 获取键值对信息
-                    Map<Object, Object> value = record.getValue();
-                    // 将订单信息map转为java对象
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 将订单信息存入到数据库中
-                    createOrder(voucherOrder);
-                    // 确认消息
-                    stringRedisTemplate.opsForStream().acknowledge(streamName, "g1", record.getId());
+                    handleRecords(list);
                 } catch (Exception e) {
+                    // 处理失败的消息留在pending-list中 按退避时间重试 不阻塞新消息
                     log.error("订单异常信息:", e);
-                    handleQueueException();
+                    ThreadUtil.sleep(retryBackoffMillis);
                 }
             }
+            log.info("节点{}的消费者{}已停止", nodeName, consumer.getName());
         }
 
-        private void handleQueueException() {
-            while (true) {
-                try {
-                    // 从redis的消息队列中读取数据 从xpending中取消息
+        /**
+         * 恢复上次停机时已读取但未确认的消息 与读取新消息的线程并行执行
+         * recovering在提交前置为true 结束后置为false
+         * 按消息id分批读取自己的pending-list 处理失败的消息留给退避重试
+         */
+        private void recoverPendingRecords() {
+            long recovered = 0;
+            try {
+                String offset = "0";
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    // 指定id读取时返回的是自己pending-list中大于该id的消息
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(streamName, ReadOffset.from("0"))
+                            consumer,
+                            StreamReadOptions.empty().count(Math.max(batchSize, 1)),
+                            StreamOffset.create(streamName, ReadOffset.from(offset))
                     );
-                    // 判断pending-list是否读取到消息 若没有 则没有待确认的消息 结束循环
                     if (list == null || list.isEmpty()) {
                         break;
                     }
-                    // 从消息中获取数据  因为只读了一条 所以用get(0)
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    // 从获取的数据中 获取键值对信息
-                    Map<Object, Object> value = record.getValue();
-                    // 将订单信息map转为java对象
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                    handleRecords(list);
+                    recovered += list.size();
+                    offset = list.get(list.size() - 1).getId().getValue();
+                }
+                if (recovered > 0) {
+                    log.info("消费者{}恢复了{}条pending消息", consumer.getName(), recovered);
+                }
+            } catch (Exception e) {
+                log.error("消费者{}恢复pending消息失败 交给退避重试处理", consumer.getName(), e);
+            } finally {
+                recovering = false;
+            }
+        }
+
+        /**
+         * 批量扫描自己的pending-list
+         * 投递次数达到上限的消息转入死信队列 空闲时间超过退避时间的消息重新处理
+         * 退避时间 = retryBackoffMillis * 2^(投递次数-1) 最大maxRetryBackoffMillis
+         */
+        private void retryPendingRecords() {
+            if (recovering) {
+                return;
+            }
+            List<PendingMessage> pendingMessages = scanPending(retryCursor, p -> p.getTotalDeliveryCount() >= maxDeliveries
+                    || p.getElapsedTimeSinceLastDelivery().toMillis() >= backoff(p.getTotalDeliveryCount()));
+            if (pendingMessages.isEmpty()) {
+                return;
+            }
+            List<RecordId> deadIds = new ArrayList<>();
+            List<RecordId> dueIds = new ArrayList<>();
+            long minIdle = Long.MAX_VALUE;
+            for (PendingMessage pendingMessage : pendingMessages) {
+                long deliveries = pendingMessage.getTotalDeliveryCount();
+                if (deliveries >= maxDeliveries) {
+                    deadIds.add(pendingMessage.getId());
+                    continue;
+                }
+                dueIds.add(pendingMessage.getId());
+                minIdle = Math.min(minIdle, backoff(deliveries));
+            }
+            if (!deadIds.isEmpty()) {
+                for (MapRecord<String, String, String> record : claim(deadIds, 0)) {
+                    // 多次入库失败 订单不会再写入数据库 归还redis中扣减的库存和下单记录
+                    moveToDeadLetter(record, "超过最大投递次数" + maxDeliveries, true);
+                }
+            }
+            if (!dueIds.isEmpty()) {
+                // XCLAIM会增加投递次数 再次失败时退避时间翻倍
+                List<MapRecord<String, String, String>> records = claim(dueIds, minIdle);
+                if (!records.isEmpty()) {
+                    log.info("消费者{}重试{}条pending消息", consumer.getName(), records.size());
+                    handleRecords(records);
+                }
+            }
+        }
+
+        private long backoff(long deliveries) {
+            return Math.min(retryBackoffMillis << Math.max(Math.min(deliveries - 1, 20), 0), maxRetryBackoffMillis);
+        }
+
+        /**
+         * 认领其他消费者空闲超过claimIdleMillis的pending消息 并进行处理
+         */
+        private void claimStaleRecords() {
+            List<RecordId> staleIds = scanPending(claimCursor, p -> !consumer.getName().equals(p.getConsumerName())
+                    && p.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMillis)
+                    .stream()
+                    .map(PendingMessage::getId)
+                    .collect(Collectors.toList());
+            if (staleIds.isEmpty()) {
+                return;
+            }
+            // XCLAIM带上最小空闲时间 多个消费者同时认领时只有一个能成功
+            List<MapRecord<String, String, String>> claimed = claim(staleIds, claimIdleMillis);
+            if (claimed.isEmpty()) {
+                return;
+            }
+            log.info("消费者{}认领了{}条pending消息", consumer.getName(), claimed.size());
+            handleRecords(claimed);
+        }
+
+        /**
+         * 按消息id分页扫描pending-list 从上次结束的位置继续 扫到末尾后下次从头开始
+         * 找到一批需要处理的消息或读完PENDING_SCAN_PAGES页后返回
+         * 排在前面的消息(退避中的、属于存活消费者的)不会挡住后面需要处理的消息
+         * @param cursor 扫描位置 consumer为null时扫描整个消费组
+         * @param filter 需要处理的消息
+         * @return 最多batchSize条需要处理的消息
+         */
+        private List<PendingMessage> scanPending(PendingCursor cursor, Predicate<PendingMessage> filter) {
+            int limit = Math.max(batchSize, 1);
+            List<PendingMessage> found = new ArrayList<>(limit);
+            for (int page = 0; page < PENDING_SCAN_PAGES && found.size() < limit; page++) {
+                // 起始id包含在结果中 跳过上一页的最后一条 不使用"("排除 兼容6.2以前的redis
+                Range<String> range = cursor.lastId == null
+                        ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(cursor.lastId));
+                PendingMessages messages = cursor.consumer == null
+                        ? stringRedisTemplate.opsForStream().pending(streamName, groupName, range, PENDING_PAGE_SIZE)
+                        : stringRedisTemplate.opsForStream().pending(streamName, cursor.consumer, range, PENDING_PAGE_SIZE);
+                int read = 0;
+                for (PendingMessage message : messages) {
+                    read++;
+                    if (message.getIdAsString().equals(cursor.lastId)) {
+                        continue;
+                    }
+                    cursor.lastId = message.getIdAsString();
+                    if (filter.test(message) && found.add(message) && found.size() >= limit) {
+                        break;
+                    }
+                }
+                if (read == messages.size() && messages.size() < PENDING_PAGE_SIZE) {
+                    // 已读到末尾
+                    cursor.lastId = null;
+                    break;
+                }
+            }
+            return found;
+        }
+
+        private List<MapRecord<String, String, String>> claim(List<RecordId> ids, long minIdleMillis) {
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(
+                            streamName.getBytes(StandardCharsets.UTF_8), groupName, consumer.getName(),
+                            Duration.ofMillis(minIdleMillis), ids.toArray(new RecordId[0])
+                    ));
+            if (claimed == null) {
+                return Collections.emptyList();
+            }
+            return claimed.stream()
+                    .map(record -> record.deserialize(StringRedisSerializer.UTF_8))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * 处理读取到的消息 格式错误的消息直接转入死信队列
+         * batchSize不大于1时逐条入库 否则整批入库 整批失败时退回逐条入库
+         * 逐条入库失败的消息不确认 留在pending-list中等待重试 订单被拒绝(库存不足、重复下单)时转入死信队列
+         * @param list 读取到的消息
+         */
+        private void handleRecords(List<? extends MapRecord<String, ?, ?>> list) {
+            List<MapRecord<String, ?, ?>> records = new ArrayList<>(list.size());
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            for (MapRecord<String, ?, ?> record : list) {
+                // 将订单信息map转为java对象
+                VoucherOrder voucherOrder = parseOrder(record);
+                if (voucherOrder == null) {
+                    moveToDeadLetter(record, "消息格式错误", false);
+                    continue;
+                }
+                records.add(record);
+                voucherOrders.add(voucherOrder);
+            }
+            if (records.isEmpty()) {
+                return;
+            }
+            if (batchSize > 1 && records.size() > 1) {
+                try {
+                    // 一个事务内批量入库
+                    proxy.createOrders(voucherOrders);
+                    updateStatus(voucherOrders, SystemConstants.SECKILL_ORDER_PERSISTED);
+                    seckillOrderExpireQueue.add(voucherOrders);
+                    // 整批消息一次确认
+                    acknowledge(records);
+                    return;
+                } catch (Exception e) {
+                    // 整批回滚 退回逐条入库
+                    log.error("批量下单失败，改为逐条下单:", e);
+                }
+            }
+            List<MapRecord<String, ?, ?>> succeeded = new ArrayList<>(records.size());
+            List<VoucherOrder> persisted = new ArrayList<>(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                try {
                     // 将订单信息存入到数据库中
-                    createOrder(voucherOrder);
-                    // 确认消息
-                    stringRedisTemplate.opsForStream().acknowledge(streamName, "g1", record.getId());
+                    proxy.createOrder(voucherOrders.get(i));
+                    succeeded.add(records.get(i));
+                    persisted.add(voucherOrders.get(i));
+                } catch (SeckillOrderRejectedException e) {
+                    // 重试也不会成功 订单记为失败 不能当作已入库确认
+                    moveToDeadLetter(records.get(i), e.getMessage(), false);
                 } catch (Exception e) {
-                    log.error("pending-list订单异常信息:", e);
+                    log.error("下单失败 消息{}留在pending-list中重试:", records.get(i).getId(), e);
+                }
+            }
+            updateStatus(persisted, SystemConstants.SECKILL_ORDER_PERSISTED);
+            seckillOrderExpireQueue.add(persisted);
+            // 确认消息
+            acknowledge(succeeded);
+        }
+
+        private VoucherOrder parseOrder(MapRecord<String, ?, ?> record) {
+            try {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                if (voucherOrder.getId() == null || voucherOrder.getUserId() == null || voucherOrder.getVoucherId() == null) {
+                    return null;
                 }
+                return voucherOrder;
+            } catch (Exception e) {
+                return null;
             }
         }
+
+        /**
+         * 转入死信队列 并确认原消息
+         * 归还库存失败时抛出异常 消息留在pending-list中 下次扫描时重新转入
+         * @param record 消息
+         * @param reason 原因
+         * @param restoreStock 是否归还redis中的库存和下单记录 入库失败时归还 用户可以重新抢购
+         */
+        private void moveToDeadLetter(MapRecord<String, ?, ?> record, String reason, boolean restoreStock) {
+            VoucherOrder voucherOrder = parseOrder(record);
+            if (restoreStock && voucherOrder != null) {
+                seckillOrderExpireQueue.restoreStock(Collections.singletonList(voucherOrder));
+            }
+            Map<String, String> fields = new HashMap<>(record.getValue().size() + 2);
+            record.getValue().forEach((k, v) -> fields.put(String.valueOf(k), String.valueOf(v)));
+            fields.put("sourceId", record.getId().getValue());
+            fields.put("reason", reason);
+            stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DLQ_STREAM, fields);
+            if (voucherOrder != null) {
+                updateStatus(Collections.singletonList(voucherOrder), SystemConstants.SECKILL_ORDER_FAILED);
+            }
+            stringRedisTemplate.opsForStream().acknowledge(streamName, groupName, record.getId());
+            log.error("消息{}转入死信队列 原因:{} 内容:{}", record.getId(), reason, record.getValue());
+        }
+
+        /**
+         * 批量更新订单状态记录 供前端轮询
+         * 状态记录只用于展示 写入失败不影响消息确认
+         * @param voucherOrders 订单
+         * @param status 1:已入库 2:失败
+         */
+        private void updateStatus(List<VoucherOrder> voucherOrders, String status) {
+            if (voucherOrders.isEmpty()) {
+                return;
+            }
+            try {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (VoucherOrder voucherOrder : voucherOrders) {
+                        String statusKey = RedisConstants.SECKILL_ORDER_STATUS_KEY + voucherOrder.getId();
+                        Map<String, String> fields = new HashMap<>(4);
+                        fields.put("status", status);
+                        fields.put("userId", voucherOrder.getUserId().toString());
+                        fields.put("voucherId", voucherOrder.getVoucherId().toString());
+                        stringConnection.hMSet(statusKey, fields);
+                        stringConnection.expire(statusKey, TimeUnit.MINUTES.toSeconds(RedisConstants.SECKILL_ORDER_STATUS_TTL));
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                log.error("更新订单状态失败 status={}", status, e);
+            }
+        }
+
+        private void acknowledge(List<MapRecord<String, ?, ?>> records) {
+            if (records.isEmpty()) {
+                return;
+            }
+            RecordId[] recordIds = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+            stringRedisTemplate.opsForStream().acknowledge(streamName, groupName, recordIds);
+        }
     }
 
 /*
@@ -158,27 +692,289 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
-        // 获取用户ID
+        Result rejected = precheck(voucherId);
+        if (rejected != null) {
+            return rejected;
+        }
+        // 获取用户ID 在申请准入之前 取不到用户时不会占用名额
         Long userId = UserHolder.getUser().getId();
-        // 获取订单id
-        long orderId = redisIdWorker.nextId("order:");
-        // 执行脚本
-        Long executeResult = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
-        // 判断脚本执行结果是否为0
-        int i = executeResult.intValue();
+        // 准入控制 超出并发和排队上限的请求直接拒绝
+        if (!seckillAdmissionLimiter.tryAcquire(voucherId)) {
+            return Result.fail(SystemConstants.SECKILL_BUSY_MESSAGE);
+        }
+        // 券所在节点的redis
+        StringRedisTemplate stringRedisTemplate = seckillRedisRouter.template(voucherId);
+        long orderId = 0;
+        String executeResult;
+        try {
+            if (idInScript) {
+                // 由脚本生成订单id
+                executeResult = stringRedisTemplate.execute(
+                        SECKILL_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(), userId.toString(), "",
+                        redisIdWorker.currentIncrKey("order:"), String.valueOf(redisIdWorker.currentTimestamp()),
+                        STATUS_TTL_SECONDS
+                );
+            } else {
+                // 获取订单id
+                orderId = redisIdWorker.nextId("order:");
+                // 执行脚本
+                executeResult = stringRedisTemplate.execute(
+                        SECKILL_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                        "", "", STATUS_TTL_SECONDS
+                );
+            }
+        } finally {
+            seckillAdmissionLimiter.release(voucherId);
+        }
+        return toSeckillResult(voucherId, executeResult, orderId);
+    }
+
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId) {
+        Result rejected = precheck(voucherId);
+        if (rejected != null) {
+            return CompletableFuture.completedFuture(rejected);
+        }
+        // 在请求线程中取出用户 回调在lettuce的线程中执行
+        Long userId = UserHolder.getUser().getId();
+        // 异步请求不占用连接池 只限制整个实例同时等待redis的请求数
+        if (!seckillAsyncPermits.tryAcquire()) {
+            return CompletableFuture.completedFuture(Result.fail(SystemConstants.SECKILL_BUSY_MESSAGE));
+        }
+        StatefulRedisConnection<String, String> connection = seckillRedisRouter.route(voucherId).getAsyncConnection();
+        CompletableFuture<Result> future;
+        try {
+            if (idInScript) {
+                // 由脚本生成订单id
+                future = evalSeckillAsync(connection,
+                        voucherId.toString(), userId.toString(), "",
+                        redisIdWorker.currentIncrKey("order:"), String.valueOf(redisIdWorker.currentTimestamp()),
+                        STATUS_TTL_SECONDS
+                ).thenApplyAsync(executeResult -> toSeckillResult(voucherId, executeResult, 0), seckillCallbackExecutor);
+            } else {
+                future = redisIdWorker.nextIdAsync("order:").thenCompose(orderId -> evalSeckillAsync(connection,
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                        "", "", STATUS_TTL_SECONDS
+                ).thenApplyAsync(executeResult -> toSeckillResult(voucherId, executeResult, orderId), seckillCallbackExecutor));
+            }
+        } catch (RuntimeException e) {
+            seckillAsyncPermits.release();
+            throw e;
+        }
+        return future.whenComplete((result, e) -> seckillAsyncPermits.release());
+    }
+
+    /**
+     * 本地能判断的失败直接返回 不访问redis
+     * @param voucherId 优惠券id
+     * @return 失败结果 可以继续秒杀时返回null
+     */
+    private Result precheck(Long voucherId) {
+        // 本地已标记售罄 直接返回 不访问redis
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 本地检查秒杀时间 未开始或已结束直接返回
+        int windowCode = seckillWindowCache.check(voucherId, seckillVoucherService::getById);
+        if (windowCode != 0) {
+            return Result.fail(seckillFailMessage(windowCode));
+        }
+        // 券所在节点的订单队列积压过多 暂停下单 防止stream无限增长
+        if (seckillStreamMonitor.isDegraded(voucherId)) {
+            return Result.fail(SystemConstants.SECKILL_BUSY_MESSAGE);
+        }
+        return null;
+    }
+
+    /**
+     * 通过lettuce异步执行秒杀脚本 优先EVALSHA 脚本未缓存时退回EVAL
+     */
+    private CompletableFuture<String> evalSeckillAsync(StatefulRedisConnection<String, String> connection, String... args) {
+        RedisAsyncCommands<String, String> commands = connection.async();
+        String[] keys = new String[0];
+        CompletableFuture<String> result = new CompletableFuture<>();
+        commands.<String>evalsha(SECKILL_SCRIPT.getSha1(), ScriptOutputType.VALUE, keys, args)
+                .whenComplete((value, e) -> {
+                    if (e == null) {
+                        result.complete(value);
+                    } else if (e instanceof RedisNoScriptException) {
+                        commands.<String>eval(SECKILL_SCRIPT.getScriptAsString(), ScriptOutputType.VALUE, keys, args)
+                                .whenComplete((evalValue, evalException) -> {
+                                    if (evalException == null) {
+                                        result.complete(evalValue);
+                                    } else {
+                                        result.completeExceptionally(evalException);
+                                    }
+                                });
+                    } else {
+                        result.completeExceptionally(e);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * 把秒杀脚本的执行结果转为返回值
+     * @param voucherId 优惠券id
+     * @param executeResult 脚本返回值
+     * @param orderId 调用方生成的订单id 由脚本生成时为0
+     */
+    private Result toSeckillResult(Long voucherId, String executeResult, long orderId) {
+        // 判断脚本执行结果是否为0 脚本生成订单id时成功返回的是订单id
+        long scriptResult = Long.parseLong(executeResult);
+        int i = scriptResult > MAX_SECKILL_CODE ? 0 : (int) scriptResult;
+        if (scriptResult > MAX_SECKILL_CODE) {
+            orderId = scriptResult;
+        }
+        if (i == 1) {
+            // 已售罄 标记后后续请求在本地拒绝
+            seckillSoldOutCache.markSoldOut(voucherId);
+        }
         if (i != 0) {
             // 不为0 没有购买资格
-            return Result.fail(i == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(seckillFailMessage(i));
         }
-        // 获取IVoucherOrderService代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds) {
+        // 去重 保持提交顺序
+        List<Long> ids = voucherIds == null ? Collections.emptyList()
+                : voucherIds.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.fail("请选择优惠券");
+        }
+        if (ids.size() > SystemConstants.MAX_SECKILL_BATCH_SIZE) {
+            return Result.fail("一次最多抢购" + SystemConstants.MAX_SECKILL_BATCH_SIZE + "张优惠券");
+        }
+        Map<Long, SeckillResultDTO> results = new LinkedHashMap<>();
+        List<Long> admitted = new ArrayList<>(ids.size());
+        try {
+            // 本地能判断的券直接给出结果 其余的券申请准入后一起交给脚本
+            for (Long voucherId : ids) {
+                int code = seckillSoldOutCache.isSoldOut(voucherId)
+                        ? 1 : seckillWindowCache.check(voucherId, seckillVoucherService::getById);
+                // 券所在节点的订单队列积压过多
+                if (code == 0 && seckillStreamMonitor.isDegraded(voucherId)) {
+                    code = SECKILL_BUSY_CODE;
+                }
+                if (code == 0) {
+                    if (seckillAdmissionLimiter.tryAcquire(voucherId)) {
+                        admitted.add(voucherId);
+                        results.put(voucherId, null);
+                        continue;
+                    }
+                    code = SECKILL_BUSY_CODE;
+                }
+                results.put(voucherId, new SeckillResultDTO(voucherId, null, code, seckillFailMessage(code)));
+            }
+            // 同一节点上的券在一次脚本调用中完成 不同节点之间互相独立
+            Map<SeckillRedisRouter.Node, List<Long>> admittedByNode = admitted.stream()
+                    .collect(Collectors.groupingBy(seckillRedisRouter::route, LinkedHashMap::new, Collectors.toList()));
+            admittedByNode.forEach((node, nodeVoucherIds) -> executeBatchScript(node, nodeVoucherIds, results));
+        } finally {
+            admitted.forEach(seckillAdmissionLimiter::release);
+        }
+        return Result.ok(new ArrayList<>(results.values()));
+    }
+
+    /**
+     * 一次EVAL为同一节点上的多张券扣库存、写订单消息 每张券的结果写入results
+     */
+    private void executeBatchScript(SeckillRedisRouter.Node node, List<Long> voucherIds, Map<Long, SeckillResultDTO> results) {
+        Long userId = UserHolder.getUser().getId();
+        List<String> args = new ArrayList<>(5 + voucherIds.size() * 2);
+        args.add(userId.toString());
+        args.add(idInScript ? redisIdWorker.currentIncrKey("order:") : "");
+        args.add(idInScript ? String.valueOf(redisIdWorker.currentTimestamp()) : "");
+        args.add(STATUS_TTL_SECONDS);
+        args.add(String.valueOf(voucherIds.size()));
+        for (Long voucherId : voucherIds) {
+            args.add(voucherId.toString());
+            // 由脚本生成订单id时传空
+            args.add(idInScript ? "" : String.valueOf(redisIdWorker.nextId("order:")));
+        }
+        List<?> executeResult = node.getTemplate().execute(
+                SECKILL_BATCH_SCRIPT,
+                Collections.emptyList(),
+                args.toArray()
+        );
+        for (int i = 0; i < voucherIds.size(); i++) {
+            Long voucherId = voucherIds.get(i);
+            // 成功时返回订单id 失败时返回码
+            long scriptResult = Long.parseLong(String.valueOf(executeResult.get(i)));
+            if (scriptResult > MAX_SECKILL_CODE) {
+                results.put(voucherId, new SeckillResultDTO(voucherId, scriptResult, 0, null));
+                continue;
+            }
+            int code = (int) scriptResult;
+            if (code == 1) {
+                seckillSoldOutCache.markSoldOut(voucherId);
+            }
+            results.put(voucherId, new SeckillResultDTO(voucherId, null, code, seckillFailMessage(code)));
+        }
+    }
+
+    @Override
+    public Result querySeckillResult(Long orderId) {
+        // 只读redis中的订单状态记录 轮询不访问数据库
+        // 状态记录写在券所在的节点上 只有订单id时依次查找各节点
+        Map<Object, Object> entries = Collections.emptyMap();
+        for (SeckillRedisRouter.Node node : seckillRedisRouter.nodes()) {
+            entries = node.getTemplate().opsForHash().entries(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+            if (!entries.isEmpty()) {
+                break;
+            }
+        }
+        Long userId = UserHolder.getUser().getId();
+        if (entries.isEmpty() || !userId.toString().equals(entries.get("userId"))) {
+            return Result.fail("订单不存在或状态已过期，请到订单列表中查看");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("orderId", orderId.toString());
+        result.put("voucherId", entries.get("voucherId"));
+        result.put("status", Integer.valueOf((String) entries.get("status")));
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result querySeckillMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("admission", seckillAdmissionLimiter.metrics());
+        metrics.put("orderStream", seckillStreamMonitor.metrics());
+        metrics.put("reconcile", seckillStockReconciler.metrics());
+        return Result.ok(metrics);
+    }
+
+    /**
+     * 秒杀脚本返回值对应的提示信息
+     * @param code 1:库存不足 2:重复下单 3:尚未开始 4:已结束 5:系统繁忙 6:券不存在
+     * @return 提示信息
+     */
+    private String seckillFailMessage(int code) {
+        switch (code) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始！请关注开始时间";
+            case 4:
+                return "秒杀已结束！请早点来参与";
+            case SECKILL_BUSY_CODE:
+                return SystemConstants.SECKILL_BUSY_MESSAGE;
+            case SECKILL_NOT_FOUND_CODE:
+                return "优惠券不存在";
+            default:
+                return "秒杀失败";
+        }
+    }
+
     /**
      * 自定义消息队列 使用jdk
      */
@@ -246,19 +1042,22 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     /**
      * 在数据库中创建订单
+     * 依靠(voucher_id, user_id)唯一索引去重 重复投递的消息直接返回 不会重复写入
+     * 用户已有其他订单或库存不足时抛出SeckillOrderRejectedException 事务回滚
      * @param voucherOrder
      */
+    @Override
     @Transactional
     public void createOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 查询当前用户是否下订单
-        int count = lambdaQuery()
-                .eq(VoucherOrder::getUserId, userId)
-                .eq(VoucherOrder::getVoucherId, voucherOrder.getVoucherId())
-                .count();
-        if (count > 0) {
-            log.error("不允许重复下单");
-            return;
+        // 写入订单 已存在时忽略 已有的订单已取消时用新订单覆盖
+        int insert = getBaseMapper().insertIgnore(voucherOrder);
+        if (insert == 0 && getBaseMapper().reactivateCancelled(voucherOrder) == 0) {
+            // 同一条消息再次投递 订单已经入库
+            if (lambdaQuery().eq(VoucherOrder::getId, voucherOrder.getId()).count() > 0) {
+                return;
+            }
+            throw new SeckillOrderRejectedException("不允许重复下单 userId=" + voucherOrder.getUserId()
+                    + " voucherId=" + voucherOrder.getVoucherId());
         }
         // 进行乐观锁设置
         boolean update = seckillVoucherService.update()
@@ -267,10 +1066,118 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .gt("stock", 0)
                 .update();
         if (!update) {
-            log.error("库存不足！");
+            // 撤销已写入的订单
+            throw new SeckillOrderRejectedException("库存不足 voucherId=" + voucherOrder.getVoucherId());
+        }
+    }
+
+    /**
+     * 批量创建订单 批内去重 每种优惠券扣减一次库存 一条SQL写入全部订单
+     * 已入库的订单(重复投递)跳过 库存不足或有重复订单时抛出异常 整批回滚
+     * @param voucherOrders 订单列表
+     */
+    @Override
+    @Transactional
+    public void createOrders(List<VoucherOrder> voucherOrders) {
+        // 批内按用户+优惠券去重
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>(voucherOrders.size() * 2);
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+        // 一次查询过滤掉数据库中已存在的订单 走(voucher_id, user_id)唯一索引
+        Set<Long> userIds = orderMap.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = orderMap.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> reactivated = new ArrayList<>();
+        lambdaQuery()
+                .select(VoucherOrder::getId, VoucherOrder::getUserId, VoucherOrder::getVoucherId, VoucherOrder::getStatus)
+                .in(VoucherOrder::getVoucherId, voucherIds)
+                .in(VoucherOrder::getUserId, userIds)
+                .list()
+                .forEach(exist -> {
+                    VoucherOrder voucherOrder = orderMap.remove(exist.getUserId() + ":" + exist.getVoucherId());
+                    // 同一条消息再次投递 订单已经入库
+                    if (voucherOrder == null || voucherOrder.getId().equals(exist.getId())) {
+                        return;
+                    }
+                    // 已有的订单已取消 用新订单覆盖
+                    if (exist.getStatus() == SystemConstants.ORDER_STATUS_CANCELLED
+                            && getBaseMapper().reactivateCancelled(voucherOrder) > 0) {
+                        reactivated.add(voucherOrder);
+                        return;
+                    }
+                    // 整批回滚 由调用方逐条处理
+                    throw new SeckillOrderRejectedException("不允许重复下单 userId=" + voucherOrder.getUserId()
+                            + " voucherId=" + voucherOrder.getVoucherId());
+                });
+        List<VoucherOrder> toSave = new ArrayList<>(orderMap.values());
+        if (!toSave.isEmpty()) {
+            // 多行insert写入订单 写入数少于预期说明有并发写入的重复订单 回滚后由调用方逐条处理
+            int insert = getBaseMapper().insertIgnoreBatch(toSave);
+            if (insert != toSave.size()) {
+                throw new RuntimeException("批量写入订单时存在重复订单 expected=" + toSave.size() + " actual=" + insert);
+            }
+        }
+        toSave.addAll(reactivated);
+        if (toSave.isEmpty()) {
             return;
         }
-        // 添加秒杀代金券订单 添加到数据库中
-        save(voucherOrder);
+        // 按优惠券分组扣减库存
+        Map<Long, Long> countMap = toSave.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : countMap.entrySet()) {
+            int update = seckillVoucherMapper.decreaseStock(entry.getKey(), entry.getValue().intValue());
+            if (update == 0) {
+                throw new RuntimeException("库存不足！voucherId=" + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 取消超时未支付的订单 并归还数据库中的库存
+     * 先锁定仍未支付的订单 已支付的订单不受影响
+     * @param orderIds 到期的订单id
+     * @return 处于取消状态的订单 包括之前已取消的 调用方据此归还redis库存(可以重复执行)
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelExpiredOrders(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<VoucherOrder> orders = lambdaQuery()
+                .select(VoucherOrder::getId, VoucherOrder::getUserId, VoucherOrder::getVoucherId, VoucherOrder::getStatus)
+                .in(VoucherOrder::getId, orderIds)
+                .in(VoucherOrder::getStatus, SystemConstants.ORDER_STATUS_UNPAID, SystemConstants.ORDER_STATUS_CANCELLED)
+                .last("FOR UPDATE")
+                .list();
+        List<VoucherOrder> unpaid = orders.stream()
+                .filter(o -> o.getStatus() == SystemConstants.ORDER_STATUS_UNPAID)
+                .collect(Collectors.toList());
+        if (!unpaid.isEmpty()) {
+            getBaseMapper().cancelUnpaid(unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+            // 按优惠券分组归还库存
+            Map<Long, Long> countMap = unpaid.stream()
+                    .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+            countMap.forEach((voucherId, count) -> seckillVoucherMapper.increaseStock(voucherId, count.intValue()));
+        }
+        return orders;
+    }
+
+    /**
+     * pending-list的扫描位置
+     */
+    private static class PendingCursor {
+        /**
+         * 为null时扫描整个消费组
+         */
+        final Consumer consumer;
+        /**
+         * 上次扫描到的消息id 为null时从头开始
+         */
+        String lastId;
+
+        PendingCursor(Consumer consumer) {
+            this.consumer = consumer;
+        }
     }
 }
@@ -8,12 +8,21 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillRedisRouter;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillWindowCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -26,11 +35,31 @@ import java.util.List;
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    private static final DefaultRedisScript<Long> INIT_STOCK_SCRIPT;
+
+    static {
+        INIT_STOCK_SCRIPT = new DefaultRedisScript<>();
+        INIT_STOCK_SCRIPT.setLocation(new ClassPathResource("initStockScript.lua"));
+        INIT_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillRedisRouter seckillRedisRouter;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillWindowCache seckillWindowCache;
+
+    /**
+     * 秒杀库存分片数 1为不分片
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -53,6 +82,38 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // 添加秒杀券到redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        initSeckillStock(voucher.getId(), voucher.getStock(), stockShards);
+        // 发布秒杀时间窗口 由秒杀脚本检查
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(SeckillWindowCache.toMillis(voucher.getBeginTime())));
+        window.put("end", String.valueOf(SeckillWindowCache.toMillis(voucher.getEndTime())));
+        seckillRedisRouter.template(voucher.getId()).opsForHash().putAll(RedisConstants.SECKILL_VOUCHER_KEY + voucher.getId(), window);
+        seckillWindowCache.put(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+    }
+
+    /**
+     * 初始化redis中的秒杀库存
+     * 分片时库存平均拆到 seckill:stock:{id}:{0..shards-1} 中 并记录分片数
+     * 原来的库存key和多余的分片在同一个脚本中删除
+     * 分片数只能在秒杀开始前设置 开始后修改会导致用户落到其他分片的订单集合
+     * 写在券所在的秒杀节点上
+     * @param voucherId 优惠券id
+     * @param stock 库存
+     * @param shards 分片数
+     */
+    @Override
+    public void initSeckillStock(Long voucherId, int stock, int shards) {
+        shards = Math.max(shards, 1);
+        List<String> args = new ArrayList<>(shards + 1);
+        args.add(voucherId.toString());
+        for (int i = 0; i < shards; i++) {
+            // 余数分给前面的分片
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            args.add(String.valueOf(shardStock));
+        }
+        // 一次脚本写入库存和分片数 并删除原来的分片 脚本不会看到只写了一半的分片
+        seckillRedisRouter.template(voucherId).execute(INIT_STOCK_SCRIPT, Collections.emptyList(), args.toArray());
+        // 库存已补充 清除各节点的售罄标记
+        seckillSoldOutCache.clearSoldOut(voucherId);
     }
 }
@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 存放long型id的布隆过滤器 可以并发读写
+ * 位数组长度和哈希函数个数由预计元素数和误判率计算
+ * 用murmur128的两个64位结果组合出k个哈希值
+ */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+    private final long expectedInsertions;
+    private final double fpp;
+    private final LongAdder bitCount = new LongAdder();
+    private final LongAdder insertions = new LongAdder();
+
+    /**
+     * @param expectedInsertions 预计元素数
+     * @param fpp 期望的误判率
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("布隆过滤器参数错误 expectedInsertions=" + expectedInsertions + " fpp=" + fpp);
+        }
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        // m = -n*ln(p)/(ln2)^2 按64位对齐
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min((m + 63) / 64, Integer.MAX_VALUE);
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words * 64;
+        // k = m/n*ln2
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+
+    public void put(long id) {
+        long[] hash = hash(id);
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            setBit((combined & Long.MAX_VALUE) % bitSize);
+            combined += hash[1];
+        }
+        insertions.increment();
+    }
+
+    public boolean mightContain(long id) {
+        long[] hash = hash(id);
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            long index = (combined & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+            combined += hash[1];
+        }
+        return true;
+    }
+
+    /**
+     * 按已置位的比例估算当前的误判率 (置位数/m)^k
+     */
+    public double currentFpp() {
+        return Math.pow((double) bitCount.sum() / bitSize, hashCount);
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public double getFpp() {
+        return fpp;
+    }
+
+    /**
+     * 写入的次数 重复写入同一个id也会计数
+     */
+    public long getInsertions() {
+        return insertions.sum();
+    }
+
+    public long memoryBytes() {
+        return bitSize / 8;
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        while (true) {
+            long old = bits.get(word);
+            if ((old & mask) != 0) {
+                return;
+            }
+            if (bits.compareAndSet(word, old, old | mask)) {
+                bitCount.increment();
+                return;
+            }
+        }
+    }
+
+    private static long[] hash(long id) {
+        return MurmurHash.hash128(ByteBuffer.allocate(Long.BYTES).putLong(id).array());
+    }
+}
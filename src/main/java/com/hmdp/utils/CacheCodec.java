@@ -0,0 +1,16 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编码方式
+ * 读取时按数据的第一个字节选择能解码的实现 不同格式的数据可以同时存在 滚动升级时新旧节点互相兼容
+ */
+public interface CacheCodec {
+    byte[] encode(Object value);
+
+    /**
+     * @return 与当前类的字段不一致(其他版本写入)时返回null 调用方按未命中处理
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    boolean canDecode(byte[] bytes);
+}
@@ -0,0 +1,296 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 防止缓存穿透的id布隆过滤器
+ * 启动后按id分页读取数据库中已有的id 之后定期重建 新增数据时写入并通过redis发布订阅通知其他节点
+ * 查询前先检查 一定不存在的id直接返回 不访问redis和数据库
+ * 过滤器还没建好或类型未启用时全部放行 大于构建时最大id的id也放行 避免丢失新增通知的节点误判
+ */
+@Slf4j
+@Component
+public class IdBloomFilter implements MessageListener {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private UserMapper userMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 启用的类型 逗号分隔 shop,blog,user
+     */
+    @Value("${hmdp.bloom.types:shop}")
+    private String types;
+
+    /**
+     * 预计元素数 数据库中的数据更多时按实际数量的1.5倍创建
+     */
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    /**
+     * 期望的误判率
+     */
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 每次从数据库读取的id数
+     */
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    /**
+     * 重建间隔(分钟) 清除已删除的id 并按数据量调整大小
+     */
+    @Value("${hmdp.bloom.rebuild-interval-minutes:60}")
+    private long rebuildIntervalMinutes;
+
+    /**
+     * 类型 -> 过滤器
+     */
+    private final Map<String, Holder> holders = new HashMap<>();
+
+    private ScheduledExecutorService rebuildExecutor;
+
+    @PostConstruct
+    private void init() {
+        Map<String, BaseMapper<?>> mappers = new HashMap<>();
+        mappers.put(SHOP, shopMapper);
+        mappers.put(BLOG, blogMapper);
+        mappers.put(USER, userMapper);
+        for (String type : StrUtil.splitTrim(types, ',')) {
+            BaseMapper<?> mapper = mappers.get(type);
+            if (mapper == null) {
+                throw new IllegalArgumentException("不支持的布隆过滤器类型: " + type);
+            }
+            holders.put(type, new Holder(mapper));
+        }
+        if (holders.isEmpty()) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+        // 启动时在后台构建 不阻塞应用启动
+        rebuildExecutor = Executors.newSingleThreadScheduledExecutor();
+        rebuildExecutor.scheduleWithFixedDelay(this::rebuildAll, 0, rebuildIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (rebuildExecutor != null) {
+            rebuildExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * id是否可能存在
+     * @param type 类型
+     * @param id id
+     * @return false:一定不存在
+     */
+    public boolean mightContain(String type, Long id) {
+        Holder holder = holders.get(type);
+        if (holder == null || id == null) {
+            return true;
+        }
+        // 先读最大id再读过滤器 读到新的最大id时一定能读到新的过滤器
+        long maxId = holder.maxId;
+        BloomFilter filter = holder.current;
+        if (filter == null || id > maxId) {
+            return true;
+        }
+        holder.checks.increment();
+        if (filter.mightContain(id)) {
+            return true;
+        }
+        holder.rejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后写入id 并通知其他节点
+     * @param type 类型
+     * @param id id
+     */
+    public void add(String type, Long id) {
+        Holder holder = holders.get(type);
+        if (holder == null || id == null) {
+            return;
+        }
+        holder.put(id);
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, type + ":" + id);
+        } catch (Exception e) {
+            log.error("发布布隆过滤器新增消息失败 {}:{} 其他节点将在重建后包含该id", type, id, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(':');
+        Holder holder = holders.get(body.substring(0, index));
+        if (holder != null) {
+            holder.put(Long.valueOf(body.substring(index + 1)));
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        holders.forEach((type, holder) -> {
+            Map<String, Object> typeMetrics = new LinkedHashMap<>();
+            BloomFilter filter = holder.current;
+            typeMetrics.put("ready", filter != null);
+            if (filter != null) {
+                typeMetrics.put("expectedInsertions", filter.getExpectedInsertions());
+                typeMetrics.put("fpp", filter.getFpp());
+                typeMetrics.put("currentFpp", filter.currentFpp());
+                typeMetrics.put("insertions", filter.getInsertions());
+                typeMetrics.put("bitSize", filter.getBitSize());
+                typeMetrics.put("hashCount", filter.getHashCount());
+                typeMetrics.put("memoryBytes", filter.memoryBytes());
+                typeMetrics.put("maxId", holder.maxId);
+            }
+            typeMetrics.put("checks", holder.checks.sum());
+            typeMetrics.put("rejected", holder.rejected.sum());
+            typeMetrics.put("lastBuildMillis", holder.lastBuildMillis);
+            metrics.put(type, typeMetrics);
+        });
+        return metrics;
+    }
+
+    private void rebuildAll() {
+        holders.forEach((type, holder) -> {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                long begin = System.currentTimeMillis();
+                long count = rebuild(holder);
+                holder.lastBuildMillis = System.currentTimeMillis() - begin;
+                log.info("布隆过滤器{}构建完成 {}个id 耗时{}ms", type, count, holder.lastBuildMillis);
+            } catch (Exception e) {
+                // 重建失败时继续使用旧的过滤器
+                log.error("布隆过滤器{}构建失败", type, e);
+            }
+        });
+    }
+
+    /**
+     * 按id分页读取 构建期间新增的id同时写入新旧两个过滤器
+     */
+    private long rebuild(Holder holder) {
+        Integer rows = holder.mapper.selectCount(null);
+        long size = Math.max(expectedInsertions, (rows == null ? 0 : rows) * 3L / 2);
+        BloomFilter filter = new BloomFilter(size, fpp);
+        holder.startBuilding(filter);
+        boolean completed = false;
+        long count = 0;
+        long lastId = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Object> ids = selectIds(holder.mapper, lastId);
+                for (Object id : ids) {
+                    filter.put(((Number) id).longValue());
+                }
+                count += ids.size();
+                if (!ids.isEmpty()) {
+                    lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+                }
+                if (ids.size() < pageSize) {
+                    break;
+                }
+            }
+            completed = !Thread.currentThread().isInterrupted();
+        } finally {
+            // 按id升序读取 最后一个id就是构建时的最大id
+            holder.finishBuilding(completed, lastId);
+        }
+        return count;
+    }
+
+    private <T> List<Object> selectIds(BaseMapper<T> mapper, long lastId) {
+        return mapper.selectObjs(new QueryWrapper<T>()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("LIMIT " + pageSize));
+    }
+
+    private static class Holder {
+        final BaseMapper<?> mapper;
+        volatile BloomFilter current;
+        /**
+         * 构建current时数据库中的最大id 不随新增通知更新
+         */
+        volatile long maxId;
+        BloomFilter building;
+        volatile long lastBuildMillis;
+        final LongAdder checks = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        Holder(BaseMapper<?> mapper) {
+            this.mapper = mapper;
+        }
+
+        synchronized void put(long id) {
+            if (current != null) {
+                current.put(id);
+            }
+            if (building != null) {
+                building.put(id);
+            }
+        }
+
+        synchronized void startBuilding(BloomFilter filter) {
+            building = filter;
+        }
+
+        /**
+         * 构建完成时替换旧的过滤器 与put互斥 不会漏掉构建期间新增的id
+         */
+        synchronized void finishBuilding(boolean completed, long builtMaxId) {
+            if (completed) {
+                current = building;
+                maxId = builtMaxId;
+            }
+            building = null;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 进程内一级缓存 放在redis缓存前面
+ * 容量有上限 按W-TinyLFU淘汰 热点数据的读取不访问redis 也不做JSON解析
+ * 数据更新后通过redis发布订阅通知所有节点删除本地缓存
+ * 通知可能在断线期间丢失 本地缓存写入后expire-seconds过期兜底
+ * 缓存的对象被多个请求共享 取出后不能修改
+ */
+@Slf4j
+@Component
+public class LocalCache implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 最多缓存的条数
+     */
+    @Value("${hmdp.cache.local.max-size:10000}")
+    private long maxSize;
+
+    /**
+     * 写入后的有效期(秒)
+     */
+    @Value("${hmdp.cache.local.expire-seconds:60}")
+    private long expireSeconds;
+
+    private Cache<String, Object> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder hitNanos = new LongAdder();
+    private final LongAdder missNanos = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    /**
+     * 每次删除本地缓存时加一 加载前后不同说明加载期间有数据更新
+     */
+    private final AtomicLong invalidateVersion = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 先查本地缓存 未命中时由loader查询redis或数据库
+     * 不在缓存内部加锁加载 同一个key的合并由loader中的SingleFlight完成 等待时间有上限
+     * loader返回null时不缓存 加载期间有缓存失效时也不缓存 避免写回旧数据
+     * @param key 缓存key 与redis中的key相同
+     * @param loader 查询二级缓存
+     * @return 缓存的数据
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R get(String key, Supplier<R> loader) {
+        long begin = System.nanoTime();
+        R value = (R) cache.getIfPresent(key);
+        if (value != null) {
+            hits.increment();
+            hitNanos.add(System.nanoTime() - begin);
+            return value;
+        }
+        long version = invalidateVersion.get();
+        value = loader.get();
+        if (value != null && invalidateVersion.get() == version) {
+            cache.asMap().putIfAbsent(key, value);
+        }
+        misses.increment();
+        missNanos.add(System.nanoTime() - begin);
+        return value;
+    }
+
+    /**
+     * 通知所有节点删除本地缓存 在事务中调用时等事务提交后再通知
+     * 避免其他节点在提交前重新加载到旧数据
+     * @param key 缓存key
+     */
+    public void invalidate(String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    publishInvalidate(key);
+                }
+            });
+            return;
+        }
+        publishInvalidate(key);
+    }
+
+    private void publishInvalidate(String key) {
+        // 本节点直接删除 不等待消息
+        invalidateVersion.incrementAndGet();
+        cache.invalidate(key);
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        } catch (Exception e) {
+            log.error("发布缓存失效消息失败 key={} 其他节点的本地缓存将在过期后更新", key, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        invalidateVersion.incrementAndGet();
+        cache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+        invalidations.increment();
+    }
+
+    public Map<String, Object> metrics() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + missCount;
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("size", cache.estimatedSize());
+        metrics.put("maxSize", maxSize);
+        metrics.put("requests", total);
+        metrics.put("hits", hitCount);
+        metrics.put("misses", missCount);
+        metrics.put("hitRatio", total == 0 ? 0 : (double) hitCount / total);
+        // 命中时的平均耗时(微秒) 与未命中时查询redis/数据库的平均耗时
+        metrics.put("avgHitMicros", hitCount == 0 ? 0 : hitNanos.sum() / hitCount / 1000.0);
+        metrics.put("avgMissMicros", missCount == 0 ? 0 : missNanos.sum() / missCount / 1000.0);
+        metrics.put("evictions", cache.stats().evictionCount());
+        metrics.put("invalidations", invalidations.sum());
+        return metrics;
+    }
+}
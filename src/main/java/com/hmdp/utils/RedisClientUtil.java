@@ -1,18 +1,35 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.hmdp.utils.codecImpl.BinaryCacheCodec;
+import com.hmdp.utils.codecImpl.JsonCacheCodec;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 @Component
@@ -20,10 +37,84 @@ import java.util.function.Function;
 public class RedisClientUtil {
     private final StringRedisTemplate stringRedisTemplate;
 
+    private final SingleFlight singleFlight;
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public RedisClientUtil(StringRedisTemplate stringRedisTemplate) {
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlockScript.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 逻辑有效期过去该比例后开始后台刷新
+     */
+    @Value("${hmdp.cache.logical.refresh-ratio:0.8}")
+    private double refreshRatio;
+
+    /**
+     * 逻辑过期后旧值最多还能返回的时间(秒) 超过后redis删除该key
+     */
+    @Value("${hmdp.cache.logical.stale-seconds:600}")
+    private long staleSeconds;
+
+    /**
+     * 重建锁的有效期(秒) 应大于一次重建的耗时
+     */
+    @Value("${hmdp.cache.logical.lock-seconds:10}")
+    private long lockSeconds;
+
+    /**
+     * 写入redis的编码格式 binary:紧凑的二进制格式 json:JSON
+     * 读取时两种格式都能解码 切换格式时不需要清空缓存
+     * 旧版本的节点只能读取JSON 升级时先以json部署 所有节点都运行新版本后再切换为binary
+     */
+    @Value("${hmdp.cache.codec.format:json}")
+    private String codecFormat;
+
+    /**
+     * 二进制格式超过该字节数时压缩 小于等于0不压缩
+     */
+    @Value("${hmdp.cache.codec.compress-threshold:512}")
+    private int compressThreshold;
+
+    /**
+     * 解码时按顺序选择第一个能解码的
+     */
+    private List<CacheCodec> codecs;
+
+    private CacheCodec writeCodec;
+
+    /**
+     * 本节点正在重建的key
+     */
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder rebuilds = new LongAdder();
+    private final LongAdder rebuildSkipped = new LongAdder();
+    private final LongAdder rebuildFailures = new LongAdder();
+    private final LongAdder staleReads = new LongAdder();
+
+    public RedisClientUtil(StringRedisTemplate stringRedisTemplate, SingleFlight singleFlight) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.singleFlight = singleFlight;
+    }
+
+    @PostConstruct
+    private void init() {
+        CacheCodec json = new JsonCacheCodec();
+        CacheCodec binary = new BinaryCacheCodec(json, compressThreshold);
+        codecs = Arrays.asList(binary, json);
+        if ("binary".equals(codecFormat)) {
+            writeCodec = binary;
+        } else if ("json".equals(codecFormat)) {
+            writeCodec = json;
+        } else {
+            throw new IllegalArgumentException("不支持的缓存编码格式: " + codecFormat);
+        }
     }
 
     /**
@@ -34,27 +125,36 @@ public class RedisClientUtil {
      * @param unit
      */
     public <T> void set(String key, T value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, writeCodec.encode(value), unit.toMillis(time));
     }
 
     /**
-     * 逻辑过期（永不过期，得用户自己检查）
+     * 逻辑过期 写入格式为 刷新时间:逻辑过期时间:编码后的数据 时间为毫秒时间戳
+     * 到达 time*refresh-ratio 后由第一个读到的请求在后台刷新 其他请求继续读旧值
+     * redis的过期时间为 time+stale-seconds 长期无人访问的key才会被删除
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public <T> void setWithLogicalExpire(String key, T value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData<T> redisData = new RedisData<>();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        long now = System.currentTimeMillis();
+        long ttlMillis = unit.toMillis(time);
+        long refreshTime = now + (long) (ttlMillis * refreshRatio);
+        long expireTime = now + ttlMillis;
+        byte[] header = (refreshTime + ":" + expireTime + ":").getBytes(StandardCharsets.US_ASCII);
+        byte[] data = writeCodec.encode(value);
+        byte[] bytes = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, bytes, header.length, data.length);
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, bytes, ttlMillis + TimeUnit.SECONDS.toMillis(staleSeconds));
     }
 
     /**
-     * 通过互斥锁来解决缓存击穿问题（逻辑过期方式）
+     * 逻辑过期方式解决缓存击穿问题 提前刷新
+     * 到达刷新时间后返回旧值 同时在后台重建 重建期间一直持有互斥锁 重建完成后由持有者释放
+     * 本节点同一个key同时只提交一次重建 各节点之间由互斥锁保证只有一个重建
+     * redis中不存在时同步查询数据库 本节点同一个key只查一次
      * @param prefix
      * @param id
      * @param className
@@ -65,47 +165,199 @@ public class RedisClientUtil {
      * @param <R>
      * @param <T>
      */
-    public <R,T> R queryByLogicExpire(String prefix, T id, Class<R> className, Function<T, R> queryData, Long time, TimeUnit timeUnit) {
-        // 从redis中查新商铺信息
-        R shop = null;
-        String shopKey = prefix+ id;
-        String shopJson = stringRedisTemplate.opsForValue().get(shopKey);
-        // 判断redis中是否存在该商铺
-        if (StrUtil.isBlank(shopJson)) {
-            return null;
+    public <R, T> R queryByLogicExpire(String prefix, T id, Class<R> className, Function<T, R> queryData, Long time, TimeUnit timeUnit) {
+        String key = prefix + id;
+        CacheEntry<R> entry = readLogical(key, className);
+        if (entry == null) {
+            // redis中不存在 同步查询数据库
+            return singleFlight.execute(key, () -> {
+                CacheEntry<R> cached = readLogical(key, className);
+                if (cached != null) {
+                    return cached.data;
+                }
+                return loadLogical(key, id, queryData, time, timeUnit);
+            });
         }
-        // 若redis存在 进行反序列化
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        shop = JSONUtil.toBean(data, className);
-        // 获取过期时间
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            return shop;
-        }
-        // Redis中数据过期
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        try {
-            // 判断是否获取锁
-            boolean lock = getLock(lockKey);
-            if (lock) {
-                // 进行缓存重建
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
-                    // 查询数据库
-                    R apply = queryData.apply(id);
-                    // 存入redis
-                    this.setWithLogicalExpire(shopKey,apply,time,timeUnit);
+        long now = System.currentTimeMillis();
+        if (entry.refreshTime > now) {
+            return entry.data;
+        }
+        if (entry.expireTime <= now) {
+            // 已逻辑过期 重建完成前继续返回旧值
+            staleReads.increment();
+        }
+        // 本节点已提交过重建的key不再提交
+        if (rebuilding.add(key)) {
+            try {
+                CACHE_REBUILD_EXECUTOR.execute(() -> {
+                    try {
+                        rebuild(key, id, className, queryData, time, timeUnit);
+                    } finally {
+                        rebuilding.remove(key);
+                    }
                 });
+            } catch (RuntimeException e) {
+                rebuilding.remove(key);
+                log.error("提交缓存重建失败 key={}", key, e);
             }
+        }
+        return entry.data;
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("rebuilding", rebuilding.size());
+        metrics.put("rebuilds", rebuilds.sum());
+        metrics.put("rebuildSkipped", rebuildSkipped.sum());
+        metrics.put("rebuildFailures", rebuildFailures.sum());
+        metrics.put("staleReads", staleReads.sum());
+        return metrics;
+    }
+
+    /**
+     * 后台重建 获取锁后再检查一次 其他节点已经刷新过时不再查询数据库
+     */
+    private <R, T> void rebuild(String key, T id, Class<R> className, Function<T, R> queryData, Long time, TimeUnit timeUnit) {
+        String lockKey = RedisConstants.LOCK_KEY + key;
+        String owner = RedisConstants.THREAD_ID_KEY + Thread.currentThread().getId();
+        if (!getLock(lockKey, owner)) {
+            rebuildSkipped.increment();
+            return;
+        }
+        try {
+            CacheEntry<R> entry = readLogical(key, className);
+            if (entry != null && entry.refreshTime > System.currentTimeMillis()) {
+                rebuildSkipped.increment();
+                return;
+            }
+            loadLogical(key, id, queryData, time, timeUnit);
+            rebuilds.increment();
         } catch (RuntimeException e) {
-            throw new RuntimeException(e);
+            // 重建失败时保留旧值 下次读到时再重试
+            rebuildFailures.increment();
+            log.error("缓存重建失败 key={}", key, e);
         } finally {
-            // 不管结果如何 都得释放锁
-            delLock(lockKey);
+            // 重建完成后才释放锁 只释放自己持有的锁
+            delLock(lockKey, owner);
+        }
+    }
+
+    private <R, T> R loadLogical(String key, T id, Function<T, R> queryData, Long time, TimeUnit timeUnit) {
+        R r = queryData.apply(id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        setWithLogicalExpire(key, r, time, timeUnit);
+        return r;
+    }
+
+    /**
+     * 读取逻辑过期的数据 只解码一次
+     * @return redis中不存在时返回null 缓存的空值返回data为null的记录
+     */
+    private <R> CacheEntry<R> readLogical(String key, Class<R> className) {
+        byte[] value = getBytes(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.length == 0) {
+            return CacheEntry.empty();
+        }
+        if (value[0] == '{') {
+            return readLegacyLogical(value, className);
+        }
+        int first = indexOf(value, 0);
+        int second = first < 0 ? -1 : indexOf(value, first + 1);
+        if (second < 0 || value[0] < '0' || value[0] > '9') {
+            // 无法识别的格式 当作不存在重新加载
+            return null;
+        }
+        long refreshTime = Long.parseLong(new String(value, 0, first, StandardCharsets.US_ASCII));
+        long expireTime = Long.parseLong(new String(value, first + 1, second - first - 1, StandardCharsets.US_ASCII));
+        R data = decode(Arrays.copyOfRange(value, second + 1, value.length), className);
+        return data == null ? null : new CacheEntry<>(refreshTime, expireTime, data);
+    }
+
+    /**
+     * 读取旧版本写入的逻辑过期数据 {"expireTime":..., "data":{...}}
+     * 没有单独的刷新时间 到期后才刷新 刷新时按新格式写回
+     */
+    private <R> CacheEntry<R> readLegacyLogical(byte[] value, Class<R> className) {
+        try {
+            JSONObject json = JSONUtil.parseObj(new String(value, StandardCharsets.UTF_8));
+            LocalDateTime expireTime = json.get("expireTime", LocalDateTime.class);
+            JSONObject data = json.getJSONObject("data");
+            if (expireTime == null || data == null) {
+                return null;
+            }
+            long expireMillis = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return new CacheEntry<>(expireMillis, expireMillis, data.toBean(className));
+        } catch (Exception e) {
+            log.warn("无法解析旧格式的逻辑过期数据 重新加载", e);
+            return null;
+        }
+    }
+
+    /**
+     * 读取没有逻辑过期时间的数据
+     * @return redis中不存在或无法解码时返回null 缓存的空值返回data为null的记录
+     */
+    private <R> CacheEntry<R> readPass(String key, Class<R> className) {
+        byte[] value = getBytes(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.length == 0) {
+            return CacheEntry.empty();
+        }
+        R data = decode(value, className);
+        return data == null ? null : new CacheEntry<>(Long.MAX_VALUE, Long.MAX_VALUE, data);
+    }
+
+    private <R> R decode(byte[] bytes, Class<R> className) {
+        for (CacheCodec codec : codecs) {
+            if (codec.canDecode(bytes)) {
+                return codec.decode(bytes, className);
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] getBytes(String key) {
+        byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(key);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    private void setBytes(String key, byte[] value, long ttlMillis) {
+        byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(key);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(rawKey, value, Expiration.milliseconds(ttlMillis), RedisStringCommands.SetOption.upsert()));
+    }
+
+    private static class CacheEntry<R> {
+        final long refreshTime;
+        final long expireTime;
+        final R data;
+
+        CacheEntry(long refreshTime, long expireTime, R data) {
+            this.refreshTime = refreshTime;
+            this.expireTime = expireTime;
+            this.data = data;
+        }
+
+        static <R> CacheEntry<R> empty() {
+            return new CacheEntry<>(Long.MAX_VALUE, Long.MAX_VALUE, null);
         }
-        // 返回旧的商铺信息
-        return shop;
     }
 
     /**
@@ -125,45 +377,48 @@ public class RedisClientUtil {
     ) {
         // 从redis中查新商铺信息
         String shopKey = prefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(shopKey);
-        // 判断redis中是否存在该商铺
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 存在 则进行反序列化操作
-            R r = JSONUtil.toBean(shopJson, className);
-            return r;
-        }
-        if ("".equals(shopJson)) {
-            return null;
+        CacheEntry<R> entry = readPass(shopKey, className);
+        // 判断redis中是否存在该商铺 存在空值时返回null
+        if (entry != null) {
+            return entry.data;
         }
-        // Redis如果不存在这个商铺 则在数据库中查询
-        R r = queryData.apply(id);
-        if (r == null) {
-            stringRedisTemplate.opsForValue().set(shopKey, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        // 如果数据库中存在 存入到redis
-        String shopJson2 = JSONUtil.toJsonStr(r);
-        this.set(shopKey, shopJson2, time, timeUnit);
-        return r;
+        // Redis如果不存在这个商铺 则在数据库中查询 同一个key在本节点只有一个线程查询数据库 其他线程等待结果
+        return singleFlight.execute(shopKey, () -> {
+            // 等待期间前一次加载可能已经写入redis 再查一次
+            CacheEntry<R> cached = readPass(shopKey, className);
+            if (cached != null) {
+                return cached.data;
+            }
+            R r = queryData.apply(id);
+            if (r == null) {
+                stringRedisTemplate.opsForValue().set(shopKey, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            // 如果数据库中存在 存入到redis
+            this.set(shopKey, r, time, timeUnit);
+            return r;
+        });
     }
 
 
 
     /**
-     * 获取互斥锁
-     * @param LockKey
+     * 获取互斥锁 值为持有者标识
+     * @param lockKey
+     * @param owner
      * @return
      */
-    private boolean getLock(String LockKey) {
-        Boolean aBoolean = stringRedisTemplate.opsForValue().setIfAbsent(LockKey, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+    private boolean getLock(String lockKey, String owner) {
+        Boolean aBoolean = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, owner, lockSeconds, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(aBoolean);
     }
 
     /**
-     * 删除互斥锁
+     * 删除互斥锁 只删除自己持有的锁
      * @param lockKey
+     * @param owner
      */
-    private void delLock(String lockKey) {
-        stringRedisTemplate.delete(lockKey);
+    private void delLock(String lockKey, String owner) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), owner);
     }
 }
@@ -12,11 +12,27 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:channel:invalidate";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:channel:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:channel:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:channel:restock";
+    public static final String SECKILL_WINDOW_CHANNEL = "seckill:channel:window";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 30L;
+    public static final String SECKILL_ORDER_EXPIRE_KEY = "seckill:order:expire";
+    public static final String SECKILL_RESTORED_KEY = "seckill:restored:";
+    public static final Long SECKILL_RESTORED_TTL = 24L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -24,6 +40,8 @@ public class RedisConstants {
     public static final String FOLLOW_KEY = "follow:";
 
     public static final String ID_INCRMENT_KEY = "icr:";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
     public static final String LOCK_KEY = "lock:";
     public static final String THREAD_ID_KEY = UUID.randomUUID().toString(true) + "-";
 }
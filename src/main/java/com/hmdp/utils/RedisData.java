@@ -1,11 +0,0 @@
-package com.hmdp.utils;
-
-import lombok.Data;
-
-import java.time.LocalDateTime;
-
-@Data
-public class RedisData<T> {
-    private LocalDateTime expireTime;
-    private T data;
-}
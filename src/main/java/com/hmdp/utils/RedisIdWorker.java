@@ -1,37 +1,269 @@
 package com.hmdp.utils;
 
+import io.lettuce.core.api.StatefulRedisConnection;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * hmdp.id.mode=snowflake时才会创建
+     */
+    @Autowired(required = false)
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    /**
+     * 异步生成id使用的连接
+     */
+    @Resource
+    private StatefulRedisConnection<String, String> seckillAsyncConnection;
+
     private final long BEGIN_TIMESTAMP = 1640995200L;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final ExecutorService ID_SEGMENT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * id生成方式 incr:每个id执行一次INCR segment:INCRBY批量申请号段 在本地分配 snowflake:本地生成
+     */
+    @Value("${hmdp.id.mode:incr}")
+    private String mode;
+
+    /**
+     * 每次申请的号段长度
+     */
+    @Value("${hmdp.id.segment-step:1000}")
+    private long segmentStep;
+
+    /**
+     * 号段剩余比例低于该值时异步申请下一个号段
+     */
+    @Value("${hmdp.id.segment-refill-ratio:0.2}")
+    private double segmentRefillRatio;
+
+    /**
+     * 当天的日期信息 每天只计算一次
+     */
+    private volatile DayInfo dayInfo;
+
+    /**
+     * 自增长的key -> 号段
+     */
+    private final Map<String, SegmentBuffer> segmentMap = new ConcurrentHashMap<>();
+
     /**
      * 设置id自增长
      * @param prefix
      * @return
      */
     public long nextId(String prefix) {
+        if ("segment".equals(mode)) {
+            return nextSegmentId(prefix);
+        }
+        if ("snowflake".equals(mode)) {
+            return snowflakeIdWorker.nextId(prefix);
+        }
         // 获取当前的时间撮
         LocalDateTime now = LocalDateTime.now();
         long NOW_TIMESTAMP = now.toEpochSecond(ZoneOffset.UTC);
         long timeStamp = NOW_TIMESTAMP - BEGIN_TIMESTAMP;
         // 设置当前日期格式
-        String nowTimeFormat = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String nowTimeFormat = now.format(DATE_FORMATTER);
         // 设置自增长的key 获取自增长的值
         String icrKey = RedisConstants.ID_INCRMENT_KEY + prefix + nowTimeFormat;
         long increment = stringRedisTemplate.opsForValue().increment(icrKey);
 
         return timeStamp << 32 | increment;
     }
+
+    /**
+     * 异步生成id INCR模式通过lettuce异步命令自增 不阻塞调用线程 其他模式在本地生成
+     * @param prefix
+     * @return
+     */
+    public CompletableFuture<Long> nextIdAsync(String prefix) {
+        if (!"incr".equals(mode)) {
+            return CompletableFuture.completedFuture(nextId(prefix));
+        }
+        long nowMillis = System.currentTimeMillis();
+        DayInfo day = currentDay(nowMillis);
+        // 与INCR模式一致 把本地时间当作UTC时间计算时间戳
+        long timeStamp = nowMillis / 1000 + day.offsetSeconds - BEGIN_TIMESTAMP;
+        String icrKey = RedisConstants.ID_INCRMENT_KEY + prefix + day.format;
+        return seckillAsyncConnection.async().incr(icrKey).toCompletableFuture()
+                .thenApply(increment -> timeStamp << 32 | increment);
+    }
+
+    /**
+     * 号段模式 序号从本地号段中无锁分配 id格式与INCR模式相同
+     * @param prefix
+     * @return
+     */
+    private long nextSegmentId(String prefix) {
+        long nowMillis = System.currentTimeMillis();
+        DayInfo day = currentDay(nowMillis);
+        // 与INCR模式一致 把本地时间当作UTC时间计算时间戳
+        long timeStamp = nowMillis / 1000 + day.offsetSeconds - BEGIN_TIMESTAMP;
+        String icrKey = RedisConstants.ID_INCRMENT_KEY + prefix + day.format;
+        SegmentBuffer buffer = segmentMap.computeIfAbsent(icrKey, SegmentBuffer::new);
+        return timeStamp << 32 | buffer.next();
+    }
+
+    /**
+     * 当前的自增长key 秒杀脚本生成订单id时使用 与nextId使用的key相同
+     * @param prefix
+     * @return
+     */
+    public String currentIncrKey(String prefix) {
+        return RedisConstants.ID_INCRMENT_KEY + prefix + currentDay(System.currentTimeMillis()).format;
+    }
+
+    /**
+     * 当前的时间戳 与nextId中的时间戳相同
+     * @return
+     */
+    public long currentTimestamp() {
+        long nowMillis = System.currentTimeMillis();
+        return nowMillis / 1000 + currentDay(nowMillis).offsetSeconds - BEGIN_TIMESTAMP;
+    }
+
+    private DayInfo currentDay(long nowMillis) {
+        DayInfo day = dayInfo;
+        if (day != null && nowMillis < day.validUntil) {
+            return day;
+        }
+        synchronized (this) {
+            day = dayInfo;
+            if (day != null && nowMillis < day.validUntil) {
+                return day;
+            }
+            Instant now = Instant.ofEpochMilli(nowMillis);
+            ZoneId zoneId = ZoneId.systemDefault();
+            ZoneOffset offset = zoneId.getRules().getOffset(now);
+            LocalDate today = LocalDate.ofEpochDay(Math.floorDiv(nowMillis / 1000 + offset.getTotalSeconds(), 86400));
+            // 到第二天或者时区偏移变化(夏令时)时重新计算
+            long validUntil = today.plusDays(1).atStartOfDay(zoneId).toInstant().toEpochMilli();
+            ZoneOffsetTransition transition = zoneId.getRules().nextTransition(now);
+            if (transition != null) {
+                validUntil = Math.min(validUntil, transition.toEpochSecond() * 1000);
+            }
+            DayInfo newDay = new DayInfo(today.format(DATE_FORMATTER), offset.getTotalSeconds(), validUntil);
+            if (day != null) {
+                // 清理前一天的号段
+                segmentMap.keySet().removeIf(key -> !key.endsWith(newDay.format));
+            }
+            dayInfo = newDay;
+            return newDay;
+        }
+    }
+
+    private static class DayInfo {
+        final String format;
+        final long offsetSeconds;
+        final long validUntil;
+
+        DayInfo(String format, long offsetSeconds, long validUntil) {
+            this.format = format;
+            this.offsetSeconds = offsetSeconds;
+            this.validUntil = validUntil;
+        }
+    }
+
+    /**
+     * 号段 [value, max]
+     */
+    private static class Segment {
+        final AtomicLong value;
+        final long max;
+
+        Segment(long min, long max) {
+            this.value = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    /**
+     * 双号段缓冲 当前号段用到一定比例时异步申请下一个号段 用完后直接切换
+     */
+    private class SegmentBuffer {
+        final String icrKey;
+        volatile Segment current;
+        volatile CompletableFuture<Segment> next;
+
+        SegmentBuffer(String icrKey) {
+            this.icrKey = icrKey;
+        }
+
+        long next() {
+            while (true) {
+                Segment segment = current;
+                if (segment != null) {
+                    long value = segment.value.getAndIncrement();
+                    if (value <= segment.max) {
+                        // 剩余数量刚好到达阈值时 只会有一个线程触发预加载
+                        if (segment.max - value == (long) (segmentStep * segmentRefillRatio)) {
+                            prefetch();
+                        }
+                        return value;
+                    }
+                }
+                switchSegment(segment);
+            }
+        }
+
+        private synchronized void prefetch() {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(this::loadSegment, ID_SEGMENT_EXECUTOR);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted) {
+            // 其他线程已经切换过了
+            if (current != exhausted) {
+                return;
+            }
+            Segment segment = null;
+            CompletableFuture<Segment> future = next;
+            if (future != null) {
+                try {
+                    segment = future.join();
+                } catch (Exception e) {
+                    log.error("预加载号段失败 key={}", icrKey, e);
+                }
+            }
+            if (segment == null) {
+                segment = loadSegment();
+            }
+            next = null;
+            current = segment;
+        }
+
+        private Segment loadSegment() {
+            Long max = stringRedisTemplate.opsForValue().increment(icrKey, segmentStep);
+            return new Segment(max - segmentStep + 1, max);
+        }
+    }
 }
@@ -0,0 +1,281 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀请求准入控制
+ * 每张券限制同时访问redis的请求数 超出的请求排队等待 队列满或等待超时直接拒绝
+ * 并发上限根据redis中的剩余库存调整 库存将尽时只放行少量请求 其余快速拒绝
+ * 剩余库存在后台线程中刷新 不阻塞请求线程
+ * 每张券的计数器数量有上限 长时间没有请求的券被淘汰 请求中的券id由客户端传入 不能无限增长
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionLimiter {
+    @Resource
+    private SeckillRedisRouter seckillRedisRouter;
+
+    /**
+     * 每张券同时执行的请求数上限
+     */
+    @Value("${hmdp.seckill.admission.max-in-flight:8}")
+    private int maxInFlight;
+
+    /**
+     * 库存耗尽时每张券仍放行的请求数 用于发现补货
+     */
+    @Value("${hmdp.seckill.admission.min-in-flight:1}")
+    private int minInFlight;
+
+    /**
+     * 每张券排队等待的请求数上限
+     */
+    @Value("${hmdp.seckill.admission.max-queue:200}")
+    private int maxQueue;
+
+    /**
+     * 排队等待的最长时间(毫秒)
+     */
+    @Value("${hmdp.seckill.admission.queue-timeout-millis:100}")
+    private long queueTimeoutMillis;
+
+    /**
+     * 并发上限 = 剩余库存 * stockFactor 再限制在[min-in-flight, max-in-flight]之间
+     */
+    @Value("${hmdp.seckill.admission.stock-factor:2}")
+    private int stockFactor;
+
+    /**
+     * 剩余库存的刷新间隔(毫秒)
+     */
+    @Value("${hmdp.seckill.admission.refresh-millis:200}")
+    private long refreshMillis;
+
+    /**
+     * 最多保留计数器的券数
+     */
+    @Value("${hmdp.seckill.admission.max-gates:10000}")
+    private long maxGates;
+
+    /**
+     * 计数器在最后一次访问后的保留时间(秒)
+     */
+    @Value("${hmdp.seckill.admission.gate-expire-seconds:600}")
+    private long gateExpireSeconds;
+
+    /**
+     * 优惠券id -> 计数器
+     * 执行中的券每次申请和释放都会访问 不会因过期被淘汰
+     * 超出数量上限被淘汰时 之后的release找不到计数器直接忽略 新的计数器从0开始
+     */
+    private Cache<Long, Gate> gateCache;
+
+    /**
+     * 刷新剩余库存的线程 每张券同时只有一个刷新任务 排队的任务数不超过券数
+     */
+    private ExecutorService refreshExecutor;
+
+    @PostConstruct
+    private void init() {
+        gateCache = Caffeine.newBuilder()
+                .maximumSize(maxGates)
+                .expireAfterAccess(gateExpireSeconds, TimeUnit.SECONDS)
+                .build();
+        refreshExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * 申请执行秒杀 返回true后必须调用release
+     * @param voucherId 优惠券id
+     * @return true:准入 false:系统繁忙 请求被拒绝
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Gate gate = gateCache.get(voucherId, id -> new Gate());
+        refreshIfNeeded(voucherId, gate);
+        if (gate.tryEnter()) {
+            gate.admitted.increment();
+            return true;
+        }
+        // 库存已耗尽时不排队
+        if (gate.remaining <= 0) {
+            gate.shed.increment();
+            return false;
+        }
+        if (gate.queued.incrementAndGet() > maxQueue) {
+            gate.queued.decrementAndGet();
+            gate.shed.increment();
+            return false;
+        }
+        try {
+            long deadline = System.currentTimeMillis() + queueTimeoutMillis;
+            synchronized (gate) {
+                while (!gate.tryEnter()) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        gate.shed.increment();
+                        return false;
+                    }
+                    gate.wait(wait);
+                }
+            }
+            gate.admitted.increment();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            gate.shed.increment();
+            return false;
+        } finally {
+            gate.queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * 秒杀执行完毕 释放名额
+     * @param voucherId 优惠券id
+     */
+    public void release(Long voucherId) {
+        Gate gate = gateCache.getIfPresent(voucherId);
+        if (gate == null) {
+            return;
+        }
+        gate.inFlight.decrementAndGet();
+        if (gate.queued.get() > 0) {
+            synchronized (gate) {
+                gate.notify();
+            }
+        }
+    }
+
+    /**
+     * 各优惠券的准入统计
+     * @return 优惠券id -> 统计信息
+     */
+    public Map<Long, Map<String, Object>> metrics() {
+        Map<Long, Map<String, Object>> metrics = new LinkedHashMap<>();
+        gateCache.asMap().forEach((voucherId, gate) -> {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("admitted", gate.admitted.sum());
+            map.put("shed", gate.shed.sum());
+            map.put("inFlight", gate.inFlight.get());
+            map.put("queued", gate.queued.get());
+            map.put("limit", gate.limit);
+            map.put("remaining", gate.remaining);
+            metrics.put(voucherId, map);
+        });
+        return metrics;
+    }
+
+    /**
+     * 距上次刷新超过refreshMillis时 提交后台任务从redis读取剩余库存 请求线程不等待结果
+     * 同一张券同时只有一个刷新任务
+     */
+    private void refreshIfNeeded(Long voucherId, Gate gate) {
+        if (System.currentTimeMillis() - gate.refreshTime < refreshMillis || !gate.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> refresh(voucherId, gate));
+        } catch (Exception e) {
+            gate.refreshing.set(false);
+            log.error("提交剩余库存刷新任务失败 voucherId={}", voucherId, e);
+        }
+    }
+
+    /**
+     * 从redis读取剩余库存 重新计算并发上限
+     */
+    private void refresh(Long voucherId, Gate gate) {
+        long now = System.currentTimeMillis();
+        try {
+            long remaining = queryRemainingStock(voucherId);
+            gate.remaining = remaining;
+            long limit = Math.min(remaining * stockFactor, maxInFlight);
+            gate.limit = (int) Math.max(limit, minInFlight);
+            gate.refreshTime = now;
+            // 上限可能变大 唤醒排队的请求
+            if (gate.queued.get() > 0) {
+                synchronized (gate) {
+                    gate.notifyAll();
+                }
+            }
+        } catch (Exception e) {
+            log.error("刷新剩余库存失败 voucherId={}", voucherId, e);
+        } finally {
+            gate.refreshing.set(false);
+        }
+    }
+
+    /**
+     * 查询redis中的剩余库存 分片时累加所有分片
+     */
+    private long queryRemainingStock(Long voucherId) {
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        StringRedisTemplate stringRedisTemplate = seckillRedisRouter.template(voucherId);
+        String shardsStr = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        int shards = StrUtil.isBlank(shardsStr) ? 1 : Integer.parseInt(shardsStr);
+        List<String> keys = new ArrayList<>();
+        if (shards <= 1) {
+            keys.add(stockKey);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                keys.add(stockKey + ":" + i);
+            }
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        long remaining = 0;
+        if (stocks != null) {
+            for (String stock : stocks) {
+                remaining += StrUtil.isBlank(stock) ? 0 : Math.max(Long.parseLong(stock), 0);
+            }
+        }
+        return remaining;
+    }
+
+    private class Gate {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        final LongAdder admitted = new LongAdder();
+        final LongAdder shed = new LongAdder();
+        volatile int limit = maxInFlight;
+        volatile long remaining = Long.MAX_VALUE;
+        volatile long refreshTime = 0;
+
+        boolean tryEnter() {
+            while (true) {
+                int current = inFlight.get();
+                if (current >= limit) {
+                    return false;
+                }
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 未支付订单的延时队列
+ * 订单入库后以 支付截止时间 为分数写入zset 定时批量取出到期的订单
+ * 取消仍未支付的订单 归还数据库和redis中的库存 并删除用户的下单记录
+ * 取出时不删除 而是租用expire-retry-millis 归还redis库存成功后才删除
+ * 取消或归还失败、实例宕机时 租约到期后重新取出 归还脚本可以重复执行
+ */
+@Slf4j
+@Component
+public class SeckillOrderExpireQueue {
+    private static final DefaultRedisScript<List> POP_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTORE_SCRIPT;
+
+    static {
+        POP_SCRIPT = new DefaultRedisScript<>();
+        POP_SCRIPT.setLocation(new ClassPathResource("popExpiredScript.lua"));
+        POP_SCRIPT.setResultType(List.class);
+        RESTORE_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_SCRIPT.setLocation(new ClassPathResource("restoreStockScript.lua"));
+        RESTORE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillRedisRouter seckillRedisRouter;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 支付超时时间(分钟)
+     */
+    @Value("${hmdp.seckill.order.pay-timeout-minutes:15}")
+    private long payTimeoutMinutes;
+
+    /**
+     * 每次取出并取消的订单数 一批订单在一个事务中取消
+     */
+    @Value("${hmdp.seckill.order.expire-batch-size:1000}")
+    private int expireBatchSize;
+
+    /**
+     * 队列为空时的检查间隔(毫秒)
+     */
+    @Value("${hmdp.seckill.order.expire-interval-millis:1000}")
+    private long expireIntervalMillis;
+
+    /**
+     * 取出的订单的租约时间(毫秒) 处理失败时在租约到期后重试
+     */
+    @Value("${hmdp.seckill.order.expire-retry-millis:5000}")
+    private long expireRetryMillis;
+
+    private ScheduledExecutorService expireExecutor;
+
+    @PostConstruct
+    private void init() {
+        expireExecutor = Executors.newSingleThreadScheduledExecutor();
+        expireExecutor.scheduleWithFixedDelay(this::drain, expireIntervalMillis, expireIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        expireExecutor.shutdownNow();
+    }
+
+    /**
+     * 订单入库后加入延时队列 重复加入时保留原来的截止时间
+     * @param voucherOrders 订单
+     */
+    public void add(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        double deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+        addAll(voucherOrders.stream().map(o -> o.getId().toString()).collect(Collectors.toList()), deadline);
+    }
+
+    private void addAll(List<String> orderIds, double deadline) {
+        Set<RedisZSetCommands.Tuple> tuples = new LinkedHashSet<>(orderIds.size() * 2);
+        for (String orderId : orderIds) {
+            tuples.add(new DefaultTuple(orderId.getBytes(StandardCharsets.UTF_8), deadline));
+        }
+        try {
+            stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.zSetCommands().zAdd(
+                    RedisConstants.SECKILL_ORDER_EXPIRE_KEY.getBytes(StandardCharsets.UTF_8),
+                    tuples,
+                    RedisZSetCommands.ZAddArgs.ifNotExists()
+            ));
+        } catch (Exception e) {
+            log.error("订单加入延时队列失败 orderIds={}", orderIds, e);
+        }
+    }
+
+    /**
+     * 连续取出到期的订单 直到不足一批或处理失败
+     */
+    private void drain() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<String> orderIds = pop();
+                if (orderIds.isEmpty()) {
+                    return;
+                }
+                if (!cancel(orderIds) || orderIds.size() < expireBatchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("处理超时订单失败", e);
+        }
+    }
+
+    /**
+     * 取出到期的订单 并租用expireRetryMillis
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> pop() {
+        long now = System.currentTimeMillis();
+        List<String> orderIds = stringRedisTemplate.execute(
+                POP_SCRIPT,
+                Collections.singletonList(RedisConstants.SECKILL_ORDER_EXPIRE_KEY),
+                String.valueOf(now), String.valueOf(expireBatchSize), String.valueOf(now + expireRetryMillis)
+        );
+        return orderIds == null ? Collections.emptyList() : orderIds;
+    }
+
+    /**
+     * 取消订单并归还redis库存 全部成功后从队列中删除
+     * @return false:处理失败 租约到期后重试
+     */
+    private boolean cancel(List<String> orderIds) {
+        List<VoucherOrder> cancelled;
+        try {
+            cancelled = voucherOrderService.cancelExpiredOrders(
+                    orderIds.stream().map(Long::valueOf).collect(Collectors.toList()));
+        } catch (Exception e) {
+            log.error("取消超时订单失败 {}毫秒后重试", expireRetryMillis, e);
+            return false;
+        }
+        if (!cancelled.isEmpty()) {
+            try {
+                // 数据库已提交 归还redis库存 删除用户的下单记录 重试时包括上次已取消的订单 已归还过的订单由归还标记跳过
+                long restored = restoreStock(cancelled);
+                log.info("取消超时订单{}条 归还redis库存{}件", cancelled.size(), restored);
+            } catch (Exception e) {
+                log.error("归还超时订单的redis库存失败 {}毫秒后重试", expireRetryMillis, e);
+                return false;
+            }
+        }
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_EXPIRE_KEY, orderIds.toArray());
+        return true;
+    }
+
+    /**
+     * 归还redis库存 删除用户的下单记录 用户可以重新抢购 每个秒杀节点执行一次
+     * 每个订单第一次执行时写入归还标记 seckill:restored:{orderId} 有效期SECKILL_RESTORED_TTL小时
+     * 已有标记的订单不再归还 用户重新抢到后 重试不会删掉新的下单记录 重复执行没有影响
+     * @param voucherOrders 已取消或无法入库的订单
+     * @return 归还的库存数
+     */
+    public long restoreStock(List<VoucherOrder> voucherOrders) {
+        String markTtl = String.valueOf(TimeUnit.HOURS.toSeconds(RedisConstants.SECKILL_RESTORED_TTL));
+        Map<SeckillRedisRouter.Node, List<String>> argsByNode = new LinkedHashMap<>();
+        Set<Long> voucherIds = new LinkedHashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            List<String> args = argsByNode.computeIfAbsent(
+                    seckillRedisRouter.route(voucherOrder.getVoucherId()), node -> new ArrayList<>(Collections.singletonList(markTtl)));
+            args.add(voucherOrder.getVoucherId().toString());
+            args.add(voucherOrder.getUserId().toString());
+            args.add(voucherOrder.getId().toString());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        long restored = 0;
+        for (Map.Entry<SeckillRedisRouter.Node, List<String>> entry : argsByNode.entrySet()) {
+            Long count = entry.getKey().getTemplate()
+                    .execute(RESTORE_SCRIPT, Collections.emptyList(), entry.getValue().toArray());
+            restored += count == null ? 0 : count;
+        }
+        // 有库存归还 清除售罄标记
+        voucherIds.forEach(seckillSoldOutCache::clearSoldOut);
+        return restored;
+    }
+}
@@ -0,0 +1,11 @@
+package com.hmdp.utils;
+
+/**
+ * 订单不能入库 重试也不会成功 库存不足或用户已有其他订单
+ * 抛出后事务回滚 消费者把消息转入死信队列 订单状态记为失败
+ */
+public class SeckillOrderRejectedException extends RuntimeException {
+    public SeckillOrderRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.ConsistentHash;
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.StringCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 秒杀redis节点路由
+ * 配置了hmdp.seckill.nodes时 每张券按一致性哈希固定落在一个节点上
+ * 券的库存、分片数、时间窗口、下单用户集合、订单状态记录和订单消息都写在这个节点
+ * 每个节点有自己的stream.orders和消费者组 不同节点上的券互不影响
+ * 未配置时只有一个节点 即spring.redis配置的redis
+ * 增减节点只会移动一部分券 被移动的券需要重新发布库存
+ */
+@Slf4j
+@Component
+public class SeckillRedisRouter {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private StatefulRedisConnection<String, String> seckillAsyncConnection;
+
+    /**
+     * 秒杀节点地址 逗号分隔 格式 redis://[:password@]host:port[/database]
+     */
+    @Value("${hmdp.seckill.nodes:}")
+    private String nodeAddresses;
+
+    /**
+     * 每个节点在哈希环上的虚拟节点数
+     */
+    @Value("${hmdp.seckill.virtual-nodes:160}")
+    private int virtualNodes;
+
+    private List<Node> nodes;
+
+    private ConsistentHash<Node> ring;
+
+    @PostConstruct
+    private void init() {
+        List<String> addresses = StrUtil.splitTrim(nodeAddresses, ',');
+        if (addresses.isEmpty()) {
+            nodes = Collections.singletonList(new Node(0, "default", stringRedisTemplate, seckillAsyncConnection, null, null));
+            return;
+        }
+        List<Node> list = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            list.add(connect(list.size(), address));
+        }
+        nodes = Collections.unmodifiableList(list);
+        // 虚拟节点按地址计算位置 与配置顺序无关
+        ring = new ConsistentHash<>(key -> MurmurHash.hash32(key.toString()), virtualNodes, nodes);
+        log.info("秒杀券按一致性哈希分布在{}个redis节点上 {}", nodes.size(), addresses);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        for (Node node : nodes) {
+            node.close();
+        }
+    }
+
+    /**
+     * 优惠券所在的节点
+     * @param voucherId 优惠券id
+     * @return 节点
+     */
+    public Node route(Long voucherId) {
+        return ring == null ? nodes.get(0) : ring.get(voucherId);
+    }
+
+    /**
+     * 优惠券所在节点的redis
+     * @param voucherId 优惠券id
+     * @return StringRedisTemplate
+     */
+    public StringRedisTemplate template(Long voucherId) {
+        return route(voucherId).getTemplate();
+    }
+
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    public boolean isMultiNode() {
+        return ring != null;
+    }
+
+    private Node connect(int index, String address) {
+        RedisURI uri = RedisURI.create(address);
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(uri.getHost(), uri.getPort());
+        configuration.setDatabase(uri.getDatabase());
+        if (uri.getPassword() != null) {
+            configuration.setPassword(uri.getPassword());
+        }
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate template = new StringRedisTemplate(connectionFactory);
+        RedisClient client = RedisClient.create(uri);
+        String name = uri.getHost() + ":" + uri.getPort() + "/" + uri.getDatabase();
+        return new Node(index, name, template, client.connect(StringCodec.UTF8), connectionFactory, client);
+    }
+
+    /**
+     * 一个秒杀redis节点
+     */
+    public static class Node {
+        private final int index;
+        private final String name;
+        private final StringRedisTemplate template;
+        private final StatefulRedisConnection<String, String> asyncConnection;
+        /**
+         * 由路由器创建的连接 默认节点使用spring管理的连接 为null
+         */
+        private final LettuceConnectionFactory connectionFactory;
+        private final RedisClient client;
+
+        Node(int index, String name, StringRedisTemplate template, StatefulRedisConnection<String, String> asyncConnection,
+             LettuceConnectionFactory connectionFactory, RedisClient client) {
+            this.index = index;
+            this.name = name;
+            this.template = template;
+            this.asyncConnection = asyncConnection;
+            this.connectionFactory = connectionFactory;
+            this.client = client;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public StringRedisTemplate getTemplate() {
+            return template;
+        }
+
+        public StatefulRedisConnection<String, String> getAsyncConnection() {
+            return asyncConnection;
+        }
+
+        private void close() {
+            if (client == null) {
+                return;
+            }
+            asyncConnection.close();
+            client.shutdown();
+            connectionFactory.destroy();
+        }
+
+        /**
+         * 虚拟节点的位置由 toString()+序号 计算
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀券本地售罄标记
+ * 脚本返回库存不足后在本地标记 并通过redis发布订阅通知其他节点 补充库存时清除
+ * 售罄后的请求直接在本地拒绝 不再执行脚本和生成订单id
+ * 只标记redis中有库存key的券 标记数量有上限
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutCache implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 标记的有效期(毫秒) 过期后放行请求重新检查redis 防止补货消息与售罄消息乱序导致一直售罄
+     */
+    @Value("${hmdp.seckill.sold-out-ttl-millis:10000}")
+    private long soldOutTtlMillis;
+
+    /**
+     * 最多标记的券数
+     */
+    @Value("${hmdp.seckill.sold-out-max-size:10000}")
+    private long maxSize;
+
+    /**
+     * 已售罄的优惠券id 写入后soldOutTtlMillis过期
+     */
+    private Cache<Long, Boolean> soldOutCache;
+
+    @PostConstruct
+    private void init() {
+        soldOutCache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(soldOutTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券是否已售罄
+     * @param voucherId 优惠券id
+     * @return true:已售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutCache.getIfPresent(voucherId) != null;
+    }
+
+    /**
+     * 标记售罄 并通知其他节点
+     * @param voucherId 优惠券id
+     */
+    public void markSoldOut(Long voucherId) {
+        // 本节点首次标记时才广播 避免大量请求同时广播
+        if (soldOutCache.asMap().put(voucherId, Boolean.TRUE) == null) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 补充库存后清除售罄标记 并通知其他节点
+     * @param voucherId 优惠券id
+     */
+    public void clearSoldOut(Long voucherId) {
+        soldOutCache.invalidate(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (RedisConstants.SECKILL_SOLD_OUT_CHANNEL.equals(channel)) {
+            soldOutCache.asMap().putIfAbsent(voucherId, Boolean.TRUE);
+        } else {
+            soldOutCache.invalidate(voucherId);
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * redis与数据库的库存对账
+ * 按voucher_id分页遍历进行中的秒杀券 比较 redis库存+下单用户数 与 数据库库存+有效订单数
+ * 两边都等于初始库存 并发下单和订单入库都不会改变它们 不一致说明有数据丢失
+ * 下单用户数与有效订单数不一致时 用SSCAN和按user_id分页的SQL找出两边不一致的用户
+ * 连续两次检查都不一致才算差异 避免把消息队列中尚未入库的订单当成差异
+ * report模式只记录差异 repair模式以数据库为准修复redis 不加锁 不扫描整表
+ * 券所在节点的订单队列中还有未处理完的消息时不修复 等下一次对账
+ * 每张券的redis数据在它所在的秒杀节点上
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+    private static final DefaultRedisScript<List> INVENTORY_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTORE_SCRIPT;
+    private static final DefaultRedisScript<Long> REPAIR_BUYER_SCRIPT;
+
+    static {
+        INVENTORY_SCRIPT = new DefaultRedisScript<>();
+        INVENTORY_SCRIPT.setLocation(new ClassPathResource("inventoryScript.lua"));
+        INVENTORY_SCRIPT.setResultType(List.class);
+        RESTORE_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_SCRIPT.setLocation(new ClassPathResource("restoreStockScript.lua"));
+        RESTORE_SCRIPT.setResultType(Long.class);
+        REPAIR_BUYER_SCRIPT = new DefaultRedisScript<>();
+        REPAIR_BUYER_SCRIPT.setLocation(new ClassPathResource("repairBuyerScript.lua"));
+        REPAIR_BUYER_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private SeckillRedisRouter seckillRedisRouter;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillStreamMonitor seckillStreamMonitor;
+
+    /**
+     * report:只记录差异 repair:修复redis
+     */
+    @Value("${hmdp.seckill.reconcile.mode:report}")
+    private String mode;
+
+    /**
+     * 对账间隔(毫秒) 小于等于0时不启动
+     */
+    @Value("${hmdp.seckill.reconcile.interval-millis:60000}")
+    private long intervalMillis;
+
+    /**
+     * 每页的优惠券数、用户数
+     */
+    @Value("${hmdp.seckill.reconcile.page-size:500}")
+    private int pageSize;
+
+    /**
+     * 结束时间在该小时数以内的券仍需对账 超时取消的订单会在结束后归还库存
+     */
+    @Value("${hmdp.seckill.reconcile.lookback-hours:24}")
+    private long lookbackHours;
+
+    /**
+     * 上一次检查发现的差异 优惠券id -> 差异
+     */
+    private final Map<Long, Drift> suspects = new ConcurrentHashMap<>();
+
+    /**
+     * 最近一次确认的差异
+     */
+    private final Map<Long, Map<String, Object>> lastReport = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService reconcileExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (intervalMillis <= 0) {
+            return;
+        }
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcile, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    public Map<Long, Map<String, Object>> metrics() {
+        return new LinkedHashMap<>(lastReport);
+    }
+
+    /**
+     * 按voucher_id分页遍历进行中的秒杀券
+     */
+    public void reconcile() {
+        LocalDateTime since = LocalDateTime.now().minusHours(lookbackHours);
+        long lastVoucherId = 0;
+        Set<Long> checked = new HashSet<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            List<SeckillVoucher> vouchers = seckillVoucherService.lambdaQuery()
+                    .gt(SeckillVoucher::getVoucherId, lastVoucherId)
+                    .gt(SeckillVoucher::getEndTime, since)
+                    .orderByAsc(SeckillVoucher::getVoucherId)
+                    .last("LIMIT " + pageSize)
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                checked.add(voucher.getVoucherId());
+                try {
+                    reconcile(voucher);
+                } catch (Exception e) {
+                    log.error("库存对账失败 voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+            if (vouchers.size() < pageSize) {
+                break;
+            }
+            lastVoucherId = vouchers.get(vouchers.size() - 1).getVoucherId();
+        }
+        // 已结束的券不再跟踪
+        suspects.keySet().retainAll(checked);
+        lastReport.keySet().retainAll(checked);
+    }
+
+    private void reconcile(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        List<?> inventory = seckillRedisRouter.template(voucherId).execute(
+                INVENTORY_SCRIPT, Collections.emptyList(), voucherId.toString());
+        if (inventory == null || toLong(inventory.get(0)) == 0) {
+            // 没有放入redis的券不参与对账
+            return;
+        }
+        long redisStock = toLong(inventory.get(1));
+        long redisBuyers = toLong(inventory.get(2));
+        // 库存和订单数在同一条SQL中读取 不使用分页查询得到的库存 两者来自同一个快照
+        Map<String, Object> dbInventory = seckillVoucherMapper.selectInventory(voucherId);
+        if (dbInventory == null) {
+            return;
+        }
+        long dbStock = toLong(dbInventory.get("stock"));
+        long dbOrders = toLong(dbInventory.get("orders"));
+        long dbTotal = dbStock + dbOrders;
+        Drift drift = new Drift();
+        // 两边的 库存+订单 都应等于初始库存
+        drift.totalDelta = dbTotal - (redisStock + redisBuyers);
+        if (redisBuyers != dbOrders) {
+            drift.redisOnly = findRedisOnlyBuyers(voucherId);
+            drift.dbOnly = findDbOnlyBuyers(voucherId);
+        }
+        // 与上一次检查的差异取交集 连续两次都存在的才是确认的差异
+        Drift previous = drift.isEmpty() ? suspects.remove(voucherId) : suspects.put(voucherId, drift);
+        if (drift.isEmpty() || previous == null) {
+            lastReport.remove(voucherId);
+            return;
+        }
+        Drift confirmed = drift.intersect(previous);
+        if (confirmed.isEmpty()) {
+            lastReport.remove(voucherId);
+            return;
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("redisStock", redisStock);
+        report.put("redisBuyers", redisBuyers);
+        report.put("dbStock", dbStock);
+        report.put("dbOrders", dbOrders);
+        report.put("totalDelta", confirmed.totalDelta);
+        report.put("redisOnly", confirmed.redisOnly.size());
+        report.put("dbOnly", confirmed.dbOnly.size());
+        // 订单队列中还有未处理完的消息时不修复 其中的订单入库后 redis中多出的用户就不再是差异
+        // 否则删除了这些用户并归还库存后 库存会被再次卖出 订单入库时超卖
+        boolean repair = "repair".equals(mode) && !seckillStreamMonitor.hasUnfinishedOrders(voucherId);
+        report.put("repaired", repair);
+        lastReport.put(voucherId, report);
+        log.warn("库存对账发现差异 voucherId={} {}", voucherId, report);
+        if (repair) {
+            repair(voucherId, confirmed);
+            suspects.remove(voucherId);
+        } else if ("repair".equals(mode)) {
+            log.warn("券{}所在节点的订单队列中还有未处理完的消息 暂不修复", voucherId);
+        }
+    }
+
+    /**
+     * 以数据库为准修复redis 修复脚本只在状态确实不一致时修改 重复执行没有影响
+     */
+    private void repair(Long voucherId, Drift drift) {
+        StringRedisTemplate stringRedisTemplate = seckillRedisRouter.template(voucherId);
+        // redis中有 数据库中没有的用户 删除下单记录 归还库存
+        if (!drift.redisOnly.isEmpty()) {
+            stringRedisTemplate.execute(RESTORE_SCRIPT, Collections.emptyList(), toRestoreArgs(voucherId, drift.redisOnly));
+        }
+        // 数据库中有 redis中没有的用户 补回下单记录 扣除库存
+        if (!drift.dbOnly.isEmpty()) {
+            stringRedisTemplate.execute(REPAIR_BUYER_SCRIPT, Collections.emptyList(), toArgs(voucherId, drift.dbOnly));
+        }
+        // 以上修复不改变 库存+下单用户数 剩余的差额直接加到库存上
+        if (drift.totalDelta != 0) {
+            String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+            String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+            if (shards != null && Integer.parseInt(shards) > 1) {
+                stockKey = stockKey + ":0";
+            }
+            stringRedisTemplate.opsForValue().increment(stockKey, drift.totalDelta);
+        }
+        seckillSoldOutCache.clearSoldOut(voucherId);
+        log.warn("库存对账已修复 voucherId={}", voucherId);
+    }
+
+    /**
+     * SSCAN遍历下单用户 每页用(voucher_id, user_id)唯一索引查询数据库
+     */
+    private Set<Long> findRedisOnlyBuyers(Long voucherId) {
+        Set<Long> redisOnly = new HashSet<>();
+        for (String orderKey : orderKeys(voucherId)) {
+            try (Cursor<String> cursor = seckillRedisRouter.template(voucherId).opsForSet()
+                    .scan(orderKey, ScanOptions.scanOptions().count(pageSize).build())) {
+                List<Long> page = new ArrayList<>(pageSize);
+                while (cursor.hasNext()) {
+                    page.add(Long.valueOf(cursor.next()));
+                    if (page.size() >= pageSize) {
+                        redisOnly.addAll(missingInDb(voucherId, page));
+                        page.clear();
+                    }
+                }
+                if (!page.isEmpty()) {
+                    redisOnly.addAll(missingInDb(voucherId, page));
+                }
+            }
+        }
+        return redisOnly;
+    }
+
+    private List<Long> missingInDb(Long voucherId, List<Long> userIds) {
+        Set<Long> exists = voucherOrderService.lambdaQuery()
+                .select(VoucherOrder::getUserId)
+                .eq(VoucherOrder::getVoucherId, voucherId)
+                .in(VoucherOrder::getUserId, userIds)
+                .ne(VoucherOrder::getStatus, SystemConstants.ORDER_STATUS_CANCELLED)
+                .list()
+                .stream()
+                .map(VoucherOrder::getUserId)
+                .collect(Collectors.toSet());
+        return userIds.stream().filter(userId -> !exists.contains(userId)).collect(Collectors.toList());
+    }
+
+    /**
+     * 按user_id分页查询有效订单 每页用管道批量SISMEMBER
+     */
+    private Set<Long> findDbOnlyBuyers(Long voucherId) {
+        Set<Long> dbOnly = new HashSet<>();
+        int shardCount = shardCount(voucherId);
+        long lastUserId = 0;
+        while (true) {
+            List<Long> userIds = voucherOrderService.lambdaQuery()
+                    .select(VoucherOrder::getUserId)
+                    .eq(VoucherOrder::getVoucherId, voucherId)
+                    .gt(VoucherOrder::getUserId, lastUserId)
+                    .ne(VoucherOrder::getStatus, SystemConstants.ORDER_STATUS_CANCELLED)
+                    .orderByAsc(VoucherOrder::getUserId)
+                    .last("LIMIT " + pageSize)
+                    .list()
+                    .stream()
+                    .map(VoucherOrder::getUserId)
+                    .collect(Collectors.toList());
+            if (userIds.isEmpty()) {
+                break;
+            }
+            List<Object> members = seckillRedisRouter.template(voucherId).executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Long userId : userIds) {
+                    stringConnection.sIsMember(orderKey(voucherId, userId, shardCount), userId.toString());
+                }
+                return null;
+            });
+            for (int i = 0; i < userIds.size(); i++) {
+                if (!Boolean.TRUE.equals(members.get(i))) {
+                    dbOnly.add(userIds.get(i));
+                }
+            }
+            if (userIds.size() < pageSize) {
+                break;
+            }
+            lastUserId = userIds.get(userIds.size() - 1);
+        }
+        return dbOnly;
+    }
+
+    private int shardCount(Long voucherId) {
+        String shards = seckillRedisRouter.template(voucherId).opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        return shards == null ? 1 : Math.max(Integer.parseInt(shards), 1);
+    }
+
+    private List<String> orderKeys(Long voucherId) {
+        int shardCount = shardCount(voucherId);
+        if (shardCount <= 1) {
+            return Collections.singletonList(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            keys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId + ":" + i);
+        }
+        return keys;
+    }
+
+    private String orderKey(Long voucherId, Long userId, int shardCount) {
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        return shardCount <= 1 ? orderKey : orderKey + ":" + userId % shardCount;
+    }
+
+    private Object[] toArgs(Long voucherId, Set<Long> userIds) {
+        List<String> args = new ArrayList<>(userIds.size() * 2);
+        for (Long userId : userIds) {
+            args.add(voucherId.toString());
+            args.add(userId.toString());
+        }
+        return args.toArray();
+    }
+
+    /**
+     * 没有对应的订单 订单ID传空 不写归还标记
+     */
+    private Object[] toRestoreArgs(Long voucherId, Set<Long> userIds) {
+        List<String> args = new ArrayList<>(userIds.size() * 3 + 1);
+        args.add(String.valueOf(TimeUnit.HOURS.toSeconds(RedisConstants.SECKILL_RESTORED_TTL)));
+        for (Long userId : userIds) {
+            args.add(voucherId.toString());
+            args.add(userId.toString());
+            args.add("");
+        }
+        return args.toArray();
+    }
+
+    private static long toLong(Object value) {
+        return Long.parseLong(String.valueOf(value));
+    }
+
+    /**
+     * 一张券的差异
+     */
+    private static class Drift {
+        /**
+         * 数据库 库存+有效订单 减去 redis 库存+下单用户
+         */
+        long totalDelta;
+        Set<Long> redisOnly = Collections.emptySet();
+        Set<Long> dbOnly = Collections.emptySet();
+
+        boolean isEmpty() {
+            return totalDelta == 0 && redisOnly.isEmpty() && dbOnly.isEmpty();
+        }
+
+        /**
+         * 与上一次的差异取交集 库存差额两次相同才算确认
+         */
+        Drift intersect(Drift previous) {
+            Drift drift = new Drift();
+            drift.totalDelta = totalDelta == previous.totalDelta ? totalDelta : 0;
+            drift.redisOnly = new HashSet<>(redisOnly);
+            drift.redisOnly.retainAll(previous.redisOnly);
+            drift.dbOnly = new HashSet<>(dbOnly);
+            drift.dbOnly.retainAll(previous.dbOnly);
+            return drift;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 订单消息队列监控
+ * 定期裁剪stream.orders中已确认的消息 并统计消费组积压的消息数(未投递+未确认)
+ * 积压超过上限时进入降级状态 秒杀接口直接返回系统繁忙 积压降到上限一半以下后恢复
+ * 每个秒杀节点的stream分别统计 一个节点积压只影响落在该节点上的券
+ * 积压数不读取消息内容: redis 7以上用XINFO GROUPS的lag 更早的版本用裁剪后的XLEN作为上限
+ */
+@Slf4j
+@Component
+public class SeckillStreamMonitor {
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("trimStreamScript.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private SeckillRedisRouter seckillRedisRouter;
+
+    /**
+     * 消费组积压消息数上限 超过后秒杀接口降级
+     */
+    @Value("${hmdp.seckill.order.max-lag:10000}")
+    private long maxLag;
+
+    /**
+     * 检查间隔(毫秒)
+     */
+    @Value("${hmdp.seckill.order.monitor-interval-millis:1000}")
+    private long monitorIntervalMillis;
+
+    /**
+     * 各节点的积压状态 与seckillRedisRouter.nodes()一一对应
+     */
+    private List<NodeState> states;
+
+    private ScheduledExecutorService monitorExecutor;
+
+    @PostConstruct
+    private void init() {
+        states = seckillRedisRouter.nodes().stream().map(NodeState::new).collect(Collectors.toList());
+        monitorExecutor = Executors.newSingleThreadScheduledExecutor();
+        monitorExecutor.scheduleWithFixedDelay(this::check, monitorIntervalMillis, monitorIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        monitorExecutor.shutdownNow();
+    }
+
+    /**
+     * 优惠券所在节点的订单队列是否积压过多
+     * @param voucherId 优惠券id
+     * @return true:降级 秒杀请求直接拒绝
+     */
+    public boolean isDegraded(Long voucherId) {
+        return states.get(seckillRedisRouter.route(voucherId).getIndex()).degraded;
+    }
+
+    /**
+     * 优惠券所在节点的订单队列中是否还有没处理完的消息(未投递 或已投递未确认)
+     * 实时查询 不使用定期统计的结果
+     * 这些消息中的订单还可能入库 在它们处理完之前不能按数据库修复redis
+     * @param voucherId 优惠券id
+     * @return true:有未处理完的消息
+     */
+    public boolean hasUnfinishedOrders(Long voucherId) {
+        StringRedisTemplate stringRedisTemplate = seckillRedisRouter.template(voucherId);
+        String streamName = RedisConstants.SECKILL_ORDER_STREAM;
+        StreamInfo.XInfoGroup group = findGroup(stringRedisTemplate, streamName, RedisConstants.SECKILL_ORDER_GROUP);
+        if (group == null) {
+            return false;
+        }
+        if (group.pendingCount() > 0) {
+            return true;
+        }
+        List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(
+                streamName,
+                Range.rightUnbounded(Range.Bound.exclusive(group.lastDeliveredId())),
+                Limit.limit().count(1)
+        );
+        return undelivered != null && !undelivered.isEmpty();
+    }
+
+    /**
+     * @return 节点名 -> 积压状态
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        for (NodeState state : states) {
+            Map<String, Object> nodeMetrics = new LinkedHashMap<>();
+            nodeMetrics.put("lag", state.lag);
+            nodeMetrics.put("maxLag", maxLag);
+            nodeMetrics.put("degraded", state.degraded);
+            nodeMetrics.put("trimmed", state.trimmed);
+            metrics.put(state.node.getName(), nodeMetrics);
+        }
+        return metrics;
+    }
+
+    private void check() {
+        for (NodeState state : states) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            check(state);
+        }
+    }
+
+    private void check(NodeState state) {
+        StringRedisTemplate stringRedisTemplate = state.node.getTemplate();
+        try {
+            String streamName = RedisConstants.SECKILL_ORDER_STREAM;
+            String groupName = RedisConstants.SECKILL_ORDER_GROUP;
+            StreamInfo.XInfoGroup group = findGroup(stringRedisTemplate, streamName, groupName);
+            if (group == null) {
+                return;
+            }
+            String lastDeliveredId = group.lastDeliveredId();
+            long pending = group.pendingCount();
+            Long undelivered = groupLag(group);
+            long currentLag;
+            if (undelivered != null) {
+                currentLag = pending + undelivered;
+            } else {
+                // 每次检查后stream只保留最早未确认的消息之后的部分 长度是积压数的上限
+                // 多出的是其间已确认的消息和近似裁剪留下的宏节点 不会把正常消费判断为积压
+                Long length = stringRedisTemplate.opsForStream().size(streamName);
+                currentLag = length == null ? pending : Math.max(length, pending);
+            }
+            updateDegraded(state, currentLag);
+            state.lag = currentLag;
+            // 最早未确认的消息之前的消息都已处理 没有未确认的消息时 最后投递的消息之前都已处理
+            String minId = lastDeliveredId;
+            if (pending > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamName, groupName);
+                if (summary == null || summary.minMessageId() == null) {
+                    return;
+                }
+                minId = summary.minMessageId();
+            }
+            if ("0-0".equals(minId)) {
+                return;
+            }
+            Long count = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(streamName), minId);
+            if (count != null && count > 0) {
+                state.trimmed += count;
+                log.debug("节点{}裁剪{}条已确认的订单消息 minId={}", state.node.getName(), count, minId);
+            }
+        } catch (Exception e) {
+            log.error("检查订单消息队列失败 节点{}", state.node.getName(), e);
+        }
+    }
+
+    /**
+     * 消费组尚未投递的消息数 XINFO GROUPS的lag字段 redis 7以上才有
+     * @return 不支持或无法计算时返回null
+     */
+    private static Long groupLag(StreamInfo.XInfoGroup group) {
+        Object lag = group.getRaw().get("lag");
+        return lag instanceof Number ? ((Number) lag).longValue() : null;
+    }
+
+    private StreamInfo.XInfoGroup findGroup(StringRedisTemplate stringRedisTemplate, String streamName, String groupName) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamName))) {
+            return null;
+        }
+        return stringRedisTemplate.opsForStream().groups(streamName).stream()
+                .filter(group -> groupName.equals(group.groupName()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * 积压超过上限时降级 降到上限一半以下时恢复 避免在阈值附近反复切换
+     */
+    private void updateDegraded(NodeState state, long currentLag) {
+        if (!state.degraded && currentLag >= maxLag) {
+            state.degraded = true;
+            log.warn("节点{}订单消息积压{}条 超过上限{} 秒杀接口降级", state.node.getName(), currentLag, maxLag);
+        } else if (state.degraded && currentLag <= maxLag / 2) {
+            state.degraded = false;
+            log.info("节点{}订单消息积压降到{}条 秒杀接口恢复", state.node.getName(), currentLag);
+        }
+    }
+
+    private static class NodeState {
+        final SeckillRedisRouter.Node node;
+        volatile boolean degraded;
+        volatile long lag;
+        volatile long trimmed;
+
+        NodeState(SeckillRedisRouter.Node node) {
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.SeckillVoucher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 秒杀时间窗口的本地缓存
+ * 秒杀开始前的请求在本地直接拒绝 不访问redis 时间窗口以redis脚本中的检查为准
+ * 容量有上限 写入后window-expire-seconds过期 不存在的券也只缓存到过期为止
+ * 发布秒杀券后通过redis发布订阅通知其他节点删除 下次检查时重新查询
+ */
+@Slf4j
+@Component
+public class SeckillWindowCache implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 时间窗口未知时不做本地检查
+     */
+    private static final long[] UNKNOWN_WINDOW = {Long.MIN_VALUE, Long.MAX_VALUE};
+
+    /**
+     * 最多缓存的券数
+     */
+    @Value("${hmdp.seckill.window-max-size:10000}")
+    private long maxSize;
+
+    /**
+     * 写入后的有效期(秒) 丢失通知时兜底
+     */
+    @Value("${hmdp.seckill.window-expire-seconds:60}")
+    private long expireSeconds;
+
+    /**
+     * 优惠券id -> {开始时间, 结束时间} 毫秒时间戳
+     */
+    private Cache<Long, long[]> windowCache;
+
+    @PostConstruct
+    private void init() {
+        windowCache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .build();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_WINDOW_CHANNEL));
+    }
+
+    /**
+     * 本地检查秒杀时间
+     * @param voucherId 优惠券id
+     * @param queryData 缓存未命中时查询秒杀券信息 每个节点每张券在有效期内只查询一次
+     * @return 0:在时间窗口内 3:尚未开始 4:已结束 与秒杀脚本的返回值一致
+     */
+    public int check(Long voucherId, Function<Long, SeckillVoucher> queryData) {
+        long[] window = windowCache.get(voucherId, id -> {
+            SeckillVoucher seckillVoucher = queryData.apply(id);
+            if (seckillVoucher == null || seckillVoucher.getBeginTime() == null || seckillVoucher.getEndTime() == null) {
+                return UNKNOWN_WINDOW;
+            }
+            return new long[]{toMillis(seckillVoucher.getBeginTime()), toMillis(seckillVoucher.getEndTime())};
+        });
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return 3;
+        }
+        if (now > window[1]) {
+            return 4;
+        }
+        return 0;
+    }
+
+    /**
+     * 更新本节点的时间窗口 并通知其他节点删除
+     * 在事务中调用时等事务提交后再通知 避免其他节点在提交前查询到旧数据
+     * @param voucherId 优惠券id
+     * @param beginTime 开始时间
+     * @param endTime 结束时间
+     */
+    public void put(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        windowCache.put(voucherId, new long[]{toMillis(beginTime), toMillis(endTime)});
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    publishInvalidate(voucherId);
+                }
+            });
+            return;
+        }
+        publishInvalidate(voucherId);
+    }
+
+    private void publishInvalidate(Long voucherId) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_WINDOW_CHANNEL, voucherId.toString());
+        } catch (Exception e) {
+            log.error("发布秒杀时间窗口更新消息失败 voucherId={} 其他节点将在过期后更新", voucherId, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        windowCache.invalidate(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+    }
+
+    public static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
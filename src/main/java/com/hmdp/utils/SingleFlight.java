@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的请求合并
+ * 同一个key同时只有一个线程执行加载 其他线程等待它的结果
+ * 等待超过timeout-millis后自己加载 加载抛出的异常会传给所有等待的线程
+ */
+@Slf4j
+@Component
+public class SingleFlight {
+    /**
+     * 等待其他线程加载结果的最长时间(毫秒)
+     */
+    @Value("${hmdp.cache.single-flight-timeout-millis:3000}")
+    private long timeoutMillis;
+
+    /**
+     * key -> 正在进行的加载
+     */
+    private final Map<String, CompletableFuture<Object>> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    /**
+     * 执行加载 同一个key正在加载时等待它的结果
+     * @param key 合并的key
+     * @param loader 加载数据
+     * @return 加载结果
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R execute(String key, Supplier<R> loader) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            // 当前线程负责加载
+            loads.increment();
+            try {
+                R value = loader.get();
+                flight.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                flights.remove(key, flight);
+            }
+        }
+        shared.increment();
+        try {
+            return (R) existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // 加载太慢 不再等待 自己加载
+            timeouts.increment();
+            log.warn("等待{}的加载结果超过{}毫秒 改为直接加载", key, timeoutMillis);
+            return loader.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待" + key + "的加载结果时被中断", e);
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("inFlight", flights.size());
+        metrics.put("loads", loads.sum());
+        metrics.put("shared", shared.sum());
+        metrics.put("timeouts", timeouts.sum());
+        return metrics;
+    }
+}
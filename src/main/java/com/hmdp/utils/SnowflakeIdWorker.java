@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地id生成器 生成id时不访问redis
+ * id格式: 0 | 1 | 40位毫秒时间戳 | 10位机器id | 12位序号
+ * 第62位固定为1 保证与RedisIdWorker生成的id(小于2^62)不重复
+ * 机器id启动时从redis租用 定时续期 时钟回拨时沿用上一次的时间戳继续分配序号
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker {
+    private static final long BEGIN_MILLIS = 1640995200000L;
+    private static final long SEQUENCE_BITS = 12L;
+    private static final long WORKER_ID_BITS = 10L;
+    private static final long TIMESTAMP_BITS = 40L;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    public static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long FLAG_BIT = 1L << (SEQUENCE_BITS + WORKER_ID_BITS + TIMESTAMP_BITS);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renewWorkerScript.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 机器id租约有效期(秒) 每隔三分之一有效期续期一次
+     */
+    @Value("${hmdp.id.worker-lease-seconds:30}")
+    private long leaseSeconds;
+
+    /**
+     * 租约持有者标识
+     */
+    private final String token = UUID.randomUUID().toString(true);
+
+    private volatile long workerId = -1;
+
+    /**
+     * 租约到期时间 续期失败超过有效期后停止生成id 防止与新租到该id的节点重复
+     */
+    private volatile long leaseExpireTime = Long.MAX_VALUE;
+
+    /**
+     * 上一次分配的 时间戳 << 12 | 序号
+     */
+    private final AtomicLong lastState = new AtomicLong();
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    public SnowflakeIdWorker() {
+    }
+
+    /**
+     * 使用固定的机器id 不从redis租用
+     * @param workerId 机器id
+     */
+    public SnowflakeIdWorker(long workerId) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("机器id超出范围: " + workerId);
+        }
+        this.workerId = workerId;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (workerId >= 0) {
+            return;
+        }
+        leaseWorkerId();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+        long period = Math.max(leaseSeconds / 3, 1);
+        heartbeatExecutor.scheduleAtFixedRate(this::renewWorkerId, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+        heartbeatExecutor.shutdownNow();
+        // 释放租约 并记录最后使用的时间戳
+        saveLastTimestamp();
+        String workerKey = RedisConstants.ID_WORKER_KEY + workerId;
+        if (token.equals(stringRedisTemplate.opsForValue().get(workerKey))) {
+            stringRedisTemplate.delete(workerKey);
+        }
+    }
+
+    /**
+     * 生成id
+     * @param prefix 业务前缀 本地生成的id全局唯一 前缀只为与RedisIdWorker保持相同的调用方式
+     * @return id
+     */
+    public long nextId(String prefix) {
+        long id = workerId;
+        if (id < 0 || System.currentTimeMillis() > leaseExpireTime) {
+            throw new IllegalStateException("机器id租约已失效");
+        }
+        while (true) {
+            long last = lastState.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long lastSequence = last & MAX_SEQUENCE;
+            long now = currentMillis() - BEGIN_MILLIS;
+            long timestamp;
+            long sequence;
+            if (now > lastTimestamp) {
+                timestamp = now;
+                sequence = 0;
+            } else if (lastSequence < MAX_SEQUENCE) {
+                // 同一毫秒内 或时钟回拨 沿用上一次的时间戳
+                timestamp = lastTimestamp;
+                sequence = lastSequence + 1;
+            } else {
+                // 序号用完 借用下一毫秒
+                timestamp = lastTimestamp + 1;
+                sequence = 0;
+            }
+            if (lastState.compareAndSet(last, timestamp << SEQUENCE_BITS | sequence)) {
+                return FLAG_BIT | timestamp << (SEQUENCE_BITS + WORKER_ID_BITS) | id << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    protected long currentMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * 依次尝试租用机器id
+     */
+    private synchronized void leaseWorkerId() {
+        for (long id = 0; id <= MAX_WORKER_ID; id++) {
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(RedisConstants.ID_WORKER_KEY + id, token, leaseSeconds, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                // 上一个持有者可能在时钟回拨后用过更大的时间戳 从它最后的时间戳之后开始
+                String last = stringRedisTemplate.opsForValue().get(RedisConstants.ID_WORKER_LAST_KEY + id);
+                if (StrUtil.isNotBlank(last)) {
+                    long lastTimestamp = Long.parseLong(last);
+                    lastState.accumulateAndGet(lastTimestamp << SEQUENCE_BITS | MAX_SEQUENCE, Math::max);
+                }
+                workerId = id;
+                leaseExpireTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                log.info("租用机器id成功 workerId={}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的机器id");
+    }
+
+    /**
+     * 续期租约 租约丢失时重新租用
+     */
+    private void renewWorkerId() {
+        try {
+            long renewTime = System.currentTimeMillis();
+            saveLastTimestamp();
+            Long renewed = stringRedisTemplate.execute(
+                    RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId),
+                    token, String.valueOf(leaseSeconds)
+            );
+            if (renewed == null || renewed == 0) {
+                log.error("机器id租约已丢失 workerId={} 重新租用", workerId);
+                workerId = -1;
+                leaseWorkerId();
+                return;
+            }
+            leaseExpireTime = renewTime + TimeUnit.SECONDS.toMillis(leaseSeconds);
+        } catch (Exception e) {
+            log.error("机器id续期失败 workerId={}", workerId, e);
+        }
+    }
+
+    private void saveLastTimestamp() {
+        if (workerId < 0) {
+            return;
+        }
+        long lastTimestamp = lastState.get() >>> SEQUENCE_BITS;
+        stringRedisTemplate.opsForValue().set(RedisConstants.ID_WORKER_LAST_KEY + workerId, String.valueOf(lastTimestamp));
+    }
+}
@@ -5,4 +5,11 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final String SECKILL_BUSY_MESSAGE = "系统繁忙，请稍后重试";
+    public static final int MAX_SECKILL_BATCH_SIZE = 10;
+    public static final int ORDER_STATUS_UNPAID = 1;
+    public static final int ORDER_STATUS_CANCELLED = 4;
+    public static final String SECKILL_ORDER_QUEUED = "0";
+    public static final String SECKILL_ORDER_PERSISTED = "1";
+    public static final String SECKILL_ORDER_FAILED = "2";
 }
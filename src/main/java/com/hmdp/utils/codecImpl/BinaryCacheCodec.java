@@ -0,0 +1,415 @@
+package com.hmdp.utils.codecImpl;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.hmdp.utils.CacheCodec;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 紧凑的二进制格式 不写字段名
+ * 每个类的字段按名称排序后依次写入 数字用变长编码 字段的类型和名称合起来算出schema哈希写在数据中
+ * 读取时哈希不一致说明是其他版本的类写入的 返回null重新加载
+ * 格式: 版本(1字节) [原始长度(变长 压缩时)] schema哈希(4字节) null位图 非null字段的值
+ * 超过compressThreshold字节时用Deflater压缩 压缩后更小才使用
+ * 含有不支持类型的字段的类使用fallback编码
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    public static final byte VERSION = 1;
+    public static final byte VERSION_DEFLATE = 2;
+
+    private static final byte LONG = 1;
+    private static final byte INT = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+    private static final byte DATE_TIME = 6;
+
+    /**
+     * Deflater和Inflater创建时要分配本地内存 每个线程复用一个
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final CacheCodec fallback;
+
+    /**
+     * 超过该字节数时压缩 小于等于0不压缩
+     */
+    private final int compressThreshold;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec(CacheCodec fallback, int compressThreshold) {
+        this.fallback = fallback;
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schema(value.getClass());
+        if (schema == null) {
+            return fallback.encode(value);
+        }
+        Output out = new Output(64);
+        out.writeByte(VERSION);
+        out.writeInt(schema.hash);
+        Field[] fields = schema.fields;
+        Object[] values = new Object[fields.length];
+        byte[] nulls = new byte[(fields.length + 7) >>> 3];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].get(value);
+                if (values[i] == null) {
+                    nulls[i >>> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        out.writeBytes(nulls, 0, nulls.length);
+        for (int i = 0; i < fields.length; i++) {
+            if (values[i] != null) {
+                writeValue(out, schema.kinds[i], values[i]);
+            }
+        }
+        if (compressThreshold > 0 && out.size > compressThreshold) {
+            byte[] compressed = deflate(out);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (bytes[0] == VERSION_DEFLATE) {
+            Input header = new Input(bytes, 1);
+            int length = header.readVarInt();
+            bytes = inflate(bytes, header.pos, length);
+        }
+        Schema schema = schema(type);
+        Input in = new Input(bytes, 1);
+        if (schema == null || in.readInt() != schema.hash) {
+            return null;
+        }
+        Field[] fields = schema.fields;
+        int nullsPos = in.pos;
+        in.pos += (fields.length + 7) >>> 3;
+        try {
+            R r = type.cast(schema.constructor.newInstance());
+            for (int i = 0; i < fields.length; i++) {
+                if ((bytes[nullsPos + (i >>> 3)] & (1 << (i & 7))) == 0) {
+                    fields[i].set(r, readValue(in, schema.kinds[i]));
+                }
+            }
+            return r;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] == VERSION || bytes[0] == VERSION_DEFLATE);
+    }
+
+    private static void writeValue(Output out, byte kind, Object value) {
+        switch (kind) {
+            case LONG:
+                out.writeVarLong(zigZag((Long) value));
+                break;
+            case INT:
+                out.writeVarLong(zigZag((Integer) value));
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToLongBits((Double) value));
+                break;
+            case BOOLEAN:
+                out.writeByte((Boolean) value ? 1 : 0);
+                break;
+            case STRING:
+                byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+                out.writeVarInt(utf8.length);
+                out.writeBytes(utf8, 0, utf8.length);
+                break;
+            case DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeVarLong(zigZag(time.toEpochSecond(ZoneOffset.UTC)));
+                out.writeVarInt(time.getNano());
+                break;
+            default:
+                throw new IllegalStateException("未知的字段类型 " + kind);
+        }
+    }
+
+    private static Object readValue(Input in, byte kind) {
+        switch (kind) {
+            case LONG:
+                return unZigZag(in.readVarLong());
+            case INT:
+                return (int) unZigZag(in.readVarLong());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case BOOLEAN:
+                return in.bytes[in.pos++] != 0;
+            case STRING:
+                int length = in.readVarInt();
+                String s = new String(in.bytes, in.pos, length, StandardCharsets.UTF_8);
+                in.pos += length;
+                return s;
+            case DATE_TIME:
+                long seconds = unZigZag(in.readVarLong());
+                return LocalDateTime.ofEpochSecond(seconds, in.readVarInt(), ZoneOffset.UTC);
+            default:
+                throw new IllegalStateException("未知的字段类型 " + kind);
+        }
+    }
+
+    /**
+     * 压缩后的数据 不比原数据小时返回null
+     */
+    private static byte[] deflate(Output raw) {
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(raw.bytes, 1, raw.size - 1);
+            deflater.finish();
+            Output out = new Output(raw.size);
+            out.writeByte(VERSION_DEFLATE);
+            out.writeVarInt(raw.size - 1);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.writeBytes(buffer, 0, n);
+                if (out.size >= raw.size) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * 解压为未压缩格式 第一个字节留给版本号
+     */
+    private static byte[] inflate(byte[] bytes, int offset, int length) {
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(bytes, offset, bytes.length - offset);
+            byte[] raw = new byte[length + 1];
+            raw[0] = VERSION;
+            int pos = 1;
+            while (pos < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, pos, raw.length - pos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("压缩数据不完整");
+                }
+                pos += n;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("压缩数据格式错误", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, BinaryCacheCodec::createSchema).supported();
+    }
+
+    private static Schema createSchema(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    fields.add(field);
+                }
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName).thenComparing(f -> f.getDeclaringClass().getName()));
+        byte[] kinds = new byte[fields.size()];
+        StringBuilder signature = new StringBuilder(type.getName());
+        for (int i = 0; i < kinds.length; i++) {
+            Field field = fields.get(i);
+            kinds[i] = kind(field.getType());
+            if (kinds[i] == 0) {
+                return Schema.UNSUPPORTED;
+            }
+            field.setAccessible(true);
+            signature.append(';').append(field.getName()).append(':').append(kinds[i]);
+        }
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return new Schema(constructor, fields.toArray(new Field[0]), kinds, MurmurHash.hash32(signature));
+        } catch (NoSuchMethodException e) {
+            return Schema.UNSUPPORTED;
+        }
+    }
+
+    private static byte kind(Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return LONG;
+        }
+        if (type == Integer.class || type == int.class) {
+            return INT;
+        }
+        if (type == Double.class || type == double.class) {
+            return DOUBLE;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return BOOLEAN;
+        }
+        if (type == String.class) {
+            return STRING;
+        }
+        if (type == LocalDateTime.class) {
+            return DATE_TIME;
+        }
+        return 0;
+    }
+
+    private static class Schema {
+        static final Schema UNSUPPORTED = new Schema(null, null, null, 0);
+
+        final Constructor<?> constructor;
+        final Field[] fields;
+        final byte[] kinds;
+        final int hash;
+
+        Schema(Constructor<?> constructor, Field[] fields, byte[] kinds, int hash) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.kinds = kinds;
+            this.hash = hash;
+        }
+
+        Schema supported() {
+            return this == UNSUPPORTED ? null : this;
+        }
+    }
+
+    private static class Output {
+        byte[] bytes;
+        int size;
+
+        Output(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, size + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, bytes, size, length);
+            size += length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeVarInt(int v) {
+            writeVarLong(v & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    private static class Input {
+        final byte[] bytes;
+        int pos;
+
+        Input(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (bytes[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (bytes[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.hmdp.utils.codecImpl;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.CacheCodec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON格式 与之前写入redis的数据相同
+ */
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == '{';
+    }
+}
@@ -0,0 +1,30 @@
+-- 参数列表 依次是 优惠券ID 各分片库存 只有一个库存时不分片
+-- 在一次脚本中写入库存和分片数 并删除上次初始化遗留的key 秒杀脚本不会看到只写了一半的库存
+local voucherId = ARGV[1]
+local shards = #ARGV - 1
+local stockKey = 'seckill:stock:' .. voucherId
+local shardsKey = 'seckill:shards:' .. voucherId
+local oldShards = tonumber(redis.call('get', shardsKey) or '1')
+
+if (shards <= 1) then
+  -- 不分片 删除原来的全部分片
+  if (oldShards > 1) then
+    for i = 0, oldShards - 1 do
+      redis.call('del', stockKey .. ':' .. i)
+    end
+  end
+  redis.call('set', stockKey, ARGV[2])
+  redis.call('del', shardsKey)
+  return shards
+end
+
+-- 分片 删除不分片时的库存和多出来的分片
+redis.call('del', stockKey)
+for i = shards, oldShards - 1 do
+  redis.call('del', stockKey .. ':' .. i)
+end
+for i = 0, shards - 1 do
+  redis.call('set', stockKey .. ':' .. i, ARGV[i + 2])
+end
+redis.call('set', shardsKey, shards)
+return shards
@@ -0,0 +1,25 @@
+-- 参数列表 优惠券ID
+-- 同时读取redis中的剩余库存和下单用户数 秒杀脚本同时修改两者 一起读取时两者之和不受并发下单影响
+local voucherId = ARGV[1]
+local shardCount = tonumber(redis.call('get', 'seckill:shards:' .. voucherId) or '1')
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local stock = 0
+local buyers = 0
+local exists = 0
+for i = 0, shardCount - 1 do
+  local sKey = stockKey
+  local oKey = orderKey
+  if (shardCount > 1) then
+    sKey = stockKey .. ':' .. i
+    oKey = orderKey .. ':' .. i
+  end
+  local value = redis.call('get', sKey)
+  if (value) then
+    exists = 1
+    stock = stock + tonumber(value)
+  end
+  buyers = buyers + redis.call('scard', oKey)
+end
+-- 返回 库存key是否存在 剩余库存 下单用户数
+return {exists, stock, buyers}
@@ -0,0 +1,22 @@
+-- 1.参数列表
+-- 1.1.延时队列的key
+local queueKey = KEYS[1]
+-- 1.2.当前时间 到期时间不大于它的订单都已超时
+local now = ARGV[1]
+-- 1.3.一次最多取出的数量
+local limit = ARGV[2]
+-- 1.4.租约到期时间 取出的订单在此之前不会再被取出
+local leaseUntil = ARGV[3]
+
+-- 2.取出到期的订单 不删除 把到期时间改为租约到期时间 多个实例同时取时不会重复
+-- 处理完成后由调用方删除 处理失败或实例宕机时租约到期后重新取出
+local members = redis.call('zrangebyscore', queueKey, '-inf', now, 'LIMIT', 0, limit)
+if (#members > 0) then
+  local args = {}
+  for i = 1, #members do
+    args[#args + 1] = leaseUntil
+    args[#args + 1] = members[i]
+  end
+  redis.call('zadd', queueKey, 'XX', unpack(args))
+end
+return members
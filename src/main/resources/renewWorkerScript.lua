@@ -0,0 +1,7 @@
+-- 比较租约持有者是否一致
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+  -- 一致 续期
+  return redis.call('expire', KEYS[1], ARGV[2])
+end
+-- 不一致 租约已丢失
+return 0
@@ -0,0 +1,22 @@
+-- 参数列表 依次是 优惠券ID 用户ID
+-- 把数据库中存在但redis中缺失的下单用户补回redis 并扣除对应的库存
+local repaired = 0
+for i = 1, #ARGV, 2 do
+  local voucherId = ARGV[i]
+  local userId = ARGV[i + 1]
+  -- 分片时写入用户所在的分片 与秒杀脚本中的订单集合一致
+  local shardCount = tonumber(redis.call('get', 'seckill:shards:' .. voucherId) or '1')
+  local stockKey = 'seckill:stock:' .. voucherId
+  local orderKey = 'seckill:order:' .. voucherId
+  if (shardCount > 1) then
+    local home = tonumber(userId) % shardCount
+    stockKey = stockKey .. ':' .. home
+    orderKey = orderKey .. ':' .. home
+  end
+  -- 只有添加成功才扣库存 重复执行时不会多扣
+  if (redis.call('sadd', orderKey, userId) == 1) then
+    redis.call('incrby', stockKey, -1)
+    repaired = repaired + 1
+  end
+end
+return repaired
@@ -0,0 +1,28 @@
+-- 参数列表 第一个是归还标记的有效期(秒) 之后依次是 优惠券ID 用户ID 订单ID
+-- 把已取消订单的库存还给redis 并删除用户的下单记录 用户可以重新抢购
+local markTtl = ARGV[1]
+local restored = 0
+for i = 2, #ARGV, 3 do
+  local voucherId = ARGV[i]
+  local userId = ARGV[i + 1]
+  local orderId = ARGV[i + 2]
+  -- 每个订单只归还一次 用户重新抢到后 重试不会删掉新的下单记录
+  -- 没有订单ID时(对账修复) 只按下单记录判断
+  if (orderId == '' or redis.call('set', 'seckill:restored:' .. orderId, '1', 'NX', 'EX', markTtl)) then
+    -- 分片时还给用户所在的分片 与秒杀脚本中的订单集合一致
+    local shardCount = tonumber(redis.call('get', 'seckill:shards:' .. voucherId) or '1')
+    local stockKey = 'seckill:stock:' .. voucherId
+    local orderKey = 'seckill:order:' .. voucherId
+    if (shardCount > 1) then
+      local home = tonumber(userId) % shardCount
+      stockKey = stockKey .. ':' .. home
+      orderKey = orderKey .. ':' .. home
+    end
+    -- 只有删除成功才归还库存 重复执行时不会多还
+    if (redis.call('srem', orderKey, userId) == 1) then
+      redis.call('incrby', stockKey, 1)
+      restored = restored + 1
+    end
+  end
+end
+return restored
@@ -0,0 +1,104 @@
+-- 一次抢购多张优惠券 每张券单独判断 互不影响 整个脚本原子执行
+-- 脚本中用到了time命令 开启按效果复制(redis 5以下需要)
+redis.replicate_commands()
+-- 生成订单ID timestamp << 32 | seq 超过了lua双精度数能精确表示的范围 按百万进制拼接成字符串
+-- 4294967296 = 4294 * 1000000 + 967296
+local function composeId(ts, seq)
+  local low = ts * 967296 + seq
+  local high = ts * 4294 + math.floor(low / 1000000)
+  return string.format('%d%06d', high, low % 1000000)
+end
+-- 获取用户ID
+local userId = ARGV[1]
+-- 脚本生成订单ID时 自增长的key和时间戳 与RedisIdWorker相同
+local icrKey = ARGV[2]
+local timestamp = tonumber(ARGV[3])
+-- 订单状态记录的有效期(秒) 为0时不写状态记录
+local statusTtl = tonumber(ARGV[4]) or 0
+-- 优惠券数量 之后依次是 优惠券ID 订单ID(为空时由脚本生成)
+local count = tonumber(ARGV[5])
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+-- 每张券的结果 成功时为订单ID 失败时为 1:库存不足 2:重复下单 3:尚未开始 4:已结束 6:券不存在
+local results = {}
+for i = 1, count do
+  local voucherId = ARGV[4 + i * 2]
+  local orderId = ARGV[5 + i * 2]
+  local code = nil
+  -- 判断秒杀时间 未发布时间窗口的券不做检查
+  local window = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end')
+  if (window[1])
+  then
+    if (now < tonumber(window[1]))
+    then
+      code = '3'
+    elseif (now > tonumber(window[2]))
+    then
+      code = '4'
+    end
+  end
+  -- 获取库存分片数 分片时用户固定落在 userId % shardCount 号分片的订单集合中
+  local hitKey = nil
+  local orderKey = 'seckill:order:' .. voucherId
+  if (code == nil)
+  then
+    local shardCount = tonumber(redis.call('get', 'seckill:shards:' .. voucherId) or '1')
+    local stokeKey = 'seckill:stock:' .. voucherId
+    local home = 0
+    if (shardCount > 1)
+    then
+      home = tonumber(userId) % shardCount
+      orderKey = orderKey .. ':' .. home
+    end
+    -- 从用户所在分片开始 依次查找还有库存的分片
+    local found = false
+    for j = 0, shardCount - 1 do
+      local key = stokeKey
+      if (shardCount > 1)
+      then
+        key = stokeKey .. ':' .. ((home + j) % shardCount)
+      end
+      local stock = redis.call('get', key)
+      if (stock)
+      then
+        found = true
+      end
+      if ((tonumber(stock) or 0) > 0)
+      then
+        hitKey = key
+        break
+      end
+    end
+    -- 没有库存key 券不存在或未发布
+    if (not found)
+    then
+      code = '6'
+    elseif (hitKey == nil)
+    then
+      code = '1'
+    elseif (redis.call('sismember', orderKey, userId) == 1)
+    then
+      code = '2'
+    end
+  end
+  if (code == nil)
+  then
+    if (orderId == '')
+    then
+      orderId = composeId(timestamp, redis.call('incr', icrKey))
+    end
+    -- 扣除库存 添加到订单信息 添加到消息队列中
+    redis.call('incrby', hitKey, -1)
+    redis.call('sadd', orderKey, userId)
+    redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+    if (statusTtl > 0)
+    then
+      local statusKey = 'seckill:order:status:' .. orderId
+      redis.call('hset', statusKey, 'status', '0', 'userId', userId, 'voucherId', voucherId)
+      redis.call('expire', statusKey, statusTtl)
+    end
+    code = orderId
+  end
+  results[i] = code
+end
+return results
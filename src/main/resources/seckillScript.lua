@@ -1,26 +1,105 @@
+-- 脚本中用到了time命令 开启按效果复制(redis 5以下需要)
+redis.replicate_commands()
+-- 生成订单ID timestamp << 32 | seq 超过了lua双精度数能精确表示的范围 按百万进制拼接成字符串
+-- 4294967296 = 4294 * 1000000 + 967296
+local function composeId(ts, seq)
+  local low = ts * 967296 + seq
+  local high = ts * 4294 + math.floor(low / 1000000)
+  return string.format('%d%06d', high, low % 1000000)
+end
 -- 获取优惠券ID
 local voucherId = ARGV[1]
 -- 获取用户ID
 local userId = ARGV[2]
--- 获取订单ID
+-- 获取订单ID 为空时由脚本生成
 local orderId = ARGV[3]
--- 获取redisKey
+-- 脚本生成订单ID时 自增长的key和时间戳 与RedisIdWorker相同
+local icrKey = ARGV[4]
+local timestamp = tonumber(ARGV[5])
+-- 订单状态记录的有效期(秒) 为空时不写状态记录
+local statusTtl = tonumber(ARGV[6] or '0') or 0
+-- 判断秒杀时间 未发布时间窗口的券不做检查
+local window = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end')
+if (window[1])
+then
+  local time = redis.call('time')
+  local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+  if (now < tonumber(window[1]))
+  then
+    return '3'
+  end
+  if (now > tonumber(window[2]))
+  then
+    return '4'
+  end
+end
+-- 获取库存分片数 未分片时为1
+local shardCount = tonumber(redis.call('get', 'seckill:shards:' .. voucherId) or '1')
+-- 获取redisKey 分片时用户固定落在 userId % shardCount 号分片的订单集合中
 local stokeKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
--- 判断库存数量
-if (tonumber(redis.call('get', stokeKey)) <= 0)
+local home = 0
+if (shardCount > 1)
+then
+  home = tonumber(userId) % shardCount
+  orderKey = orderKey .. ':' .. home
+end
+-- 判断库存数量 分片时从用户所在分片开始 依次查找还有库存的分片 全部为空才算售罄
+local hitKey = nil
+local found = false
+for i = 0, shardCount - 1 do
+  local key = stokeKey
+  if (shardCount > 1)
+  then
+    key = stokeKey .. ':' .. ((home + i) % shardCount)
+  end
+  local stock = redis.call('get', key)
+  if (stock)
+  then
+    found = true
+  end
+  if ((tonumber(stock) or 0) > 0)
+  then
+    hitKey = key
+    break
+  end
+end
+-- 没有库存key 券不存在或未发布
+if (not found)
+then
+  return '6'
+end
+if (hitKey == nil)
 then
-  return 1
+  return '1'
 end
 -- 判断用户是否下单
 if (redis.call('sismember', orderKey, userId) == 1)
 then
-  return 2
+  return '2'
+end
+-- 有购买资格后才生成订单ID 失败的请求不消耗序号
+local generated = (orderId == '')
+if (generated)
+then
+  orderId = composeId(timestamp, redis.call('incr', icrKey))
 end
 -- 扣除库存
-redis.call('incrby', stokeKey, -1)
+redis.call('incrby', hitKey, -1)
 -- 添加到订单信息
 redis.call('sadd', orderKey, userId)
 -- 添加到消息队列中
 redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
+-- 写入订单状态记录 0:排队中 消费者入库后改为1:已入库 2:失败
+if (statusTtl > 0)
+then
+  local statusKey = 'seckill:order:status:' .. orderId
+  redis.call('hset', statusKey, 'status', '0', 'userId', userId, 'voucherId', voucherId)
+  redis.call('expire', statusKey, statusTtl)
+end
+-- 脚本生成订单ID时返回订单ID 否则返回0
+if (generated)
+then
+  return orderId
+end
+return '0'
@@ -0,0 +1,8 @@
+-- 1.参数列表
+-- 1.1.stream的key
+local streamKey = KEYS[1]
+-- 1.2.最小保留的消息id 小于该id的消息都已确认
+local minId = ARGV[1]
+
+-- 2.近似裁剪 只删除完整的宏节点 开销很小
+return redis.call('XTRIM', streamKey, 'MINID', '~', minId)
@@ -0,0 +1,7 @@
+-- 比较锁的持有者是否一致
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+  -- 一致 释放锁
+  return redis.call('del', KEYS[1])
+end
+-- 不一致 锁已过期或被其他线程持有
+return 0
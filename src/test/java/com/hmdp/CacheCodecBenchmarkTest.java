@@ -0,0 +1,150 @@
+package com.hmdp;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.codecImpl.BinaryCacheCodec;
+import com.hmdp.utils.codecImpl.JsonCacheCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 缓存编码对比 JSON / 二进制 / 二进制+压缩
+ * 样例数据取自db/hmdp.sql
+ * 运行基准: mvn test -Dtest=CacheCodecBenchmarkTest -Dbenchmark=true
+ * 可选参数: -Dbenchmark.iterations=200000
+ */
+class CacheCodecBenchmarkTest {
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec(json, 0);
+    private final CacheCodec compressed = new BinaryCacheCodec(json, 512);
+
+    private final int iterations = Integer.getInteger("benchmark.iterations", 200000);
+
+    @Test
+    void testRoundTrip() {
+        for (Object value : samples()) {
+            for (CacheCodec codec : Arrays.asList(json, binary, compressed)) {
+                byte[] bytes = codec.encode(value);
+                Assertions.assertTrue(codec.canDecode(bytes));
+                Assertions.assertEquals(value, codec.decode(bytes, value.getClass()));
+            }
+        }
+        // 空字段和负数
+        Shop shop = new Shop().setId(-1L).setName("").setSold(Integer.MIN_VALUE).setX(-0.5);
+        Assertions.assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+    }
+
+    @Test
+    void testCompressOnlyAboveThreshold() {
+        Blog blog = blog();
+        Assertions.assertEquals(BinaryCacheCodec.VERSION_DEFLATE, compressed.encode(blog)[0]);
+        Assertions.assertEquals(BinaryCacheCodec.VERSION, compressed.encode(userDTO())[0]);
+    }
+
+    @Test
+    void testSchemaMismatchReturnsNull() {
+        // 其他类写入的数据 字段不同 按未命中处理
+        byte[] bytes = binary.encode(userDTO());
+        Assertions.assertNull(binary.decode(bytes, Shop.class));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmark() {
+        System.out.printf("%-8s %-10s %8s %8s %12s %12s%n", "type", "codec", "bytes", "saved", "encode(ns)", "decode(ns)");
+        for (Object value : samples()) {
+            int jsonBytes = json.encode(value).length;
+            run(value, "json", json, jsonBytes);
+            run(value, "binary", binary, jsonBytes);
+            run(value, "deflate", compressed, jsonBytes);
+        }
+    }
+
+    private void run(Object value, String name, CacheCodec codec, int jsonBytes) {
+        Class<?> type = value.getClass();
+        byte[] bytes = codec.encode(value);
+        // 预热
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += codec.encode(value).length;
+            sink += codec.decode(bytes, type).hashCode();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += codec.encode(value).length;
+        }
+        long encodeNanos = (System.nanoTime() - begin) / iterations;
+        begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += codec.decode(bytes, type).hashCode();
+        }
+        long decodeNanos = (System.nanoTime() - begin) / iterations;
+        System.out.printf("%-8s %-10s %8d %7.1f%% %12d %12d%s%n", type.getSimpleName(), name, bytes.length,
+                100.0 * (jsonBytes - bytes.length) / jsonBytes, encodeNanos, decodeNanos, sink == 0 ? " " : "");
+    }
+
+    private List<Object> samples() {
+        return Arrays.asList(shop(), blog(), userDTO());
+    }
+
+    private Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,"
+                        + "https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private Blog blog() {
+        Blog blog = new Blog();
+        blog.setId(4L);
+        blog.setShopId(4L);
+        blog.setUserId(2L);
+        blog.setIcon("/imgs/icons/user2-icon.jpg");
+        blog.setName("可可今天不吃肉");
+        blog.setIsLike(false);
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg,"
+                + "/imgs/blogs/2/6/b0756279-65da-4f2d-b62a-33f74b06454a.jpg,/imgs/blogs/10/7/7e97f47d-eb49-4dc9-a583-95faa7aed287.jpg,"
+                + "/imgs/blogs/1/2/4a7b496b-2a08-4af7-aa95-df2c3bd0ef97.jpg,/imgs/blogs/14/3/52b290eb-8b5d-403b-8373-ba0bb856d18e.jpg");
+        blog.setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>\r\n男朋友给不了的浪漫要学会自己给🍒<br/>\n"
+                + "无法重来的一生·尽量快乐.<br/><br/>🏰「小筑里·神秘浪漫花园餐厅」🏰<br/><br/>\n"
+                + "💯这是一家最最最美花园的西餐厅·到处都是花餐桌上是花前台是花  美好无处不在\n"
+                + "品一口葡萄酒，维亚红酒马瑟兰·微醺上头工作的疲惫消失无际·生如此多娇🍃<br/><br/>📍地址:延安路200号(家乐福面)<br/><br/>"
+                + "🚌交通:地铁①号线定安路B口出右转过下通道右转就到啦～<br/><br/>--------------🥣菜品详情🥣---------------<br/><br/>"
+                + "「战斧牛排]<br/>\n超大一块战斧牛排经过火焰的炙烤发出阵阵香，外焦里嫩让人垂涎欲滴，切开牛排的那一刻，牛排的汁水顺势流了出来，"
+                + "分熟的牛排肉质软，简直细嫩到犯规，一刻都等不了要放入嘴里咀嚼～<br/><br/>「奶油培根意面」<br/>太太太好吃了");
+        blog.setLiked(1);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1));
+        blog.setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+        return blog;
+    }
+
+    private UserDTO userDTO() {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        user.setNickName("小鱼同学");
+        user.setIcon("/imgs/blogs/blog1.jpg");
+        return user;
+    }
+}
@@ -1,22 +1,33 @@
 package com.hmdp;
 
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @SpringBootTest
@@ -30,6 +41,12 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     private final ExecutorService service = Executors.newFixedThreadPool(500);
 
     @Test
@@ -80,4 +97,127 @@ class HmDianPingApplicationTests {
 
     }
 
+    /**
+     * 订单入库吞吐量对比：逐条入库 vs 批量入库
+     */
+    @Test
+    void testOrderPersistThroughput() {
+        int total = 2000;
+        int batchSize = 50;
+        long voucherId = 990001L;
+        long baseId = System.currentTimeMillis() << 16;
+        // 准备一张库存充足的测试秒杀券
+        SeckillVoucher seckillVoucher = new SeckillVoucher()
+                .setVoucherId(voucherId)
+                .setStock(total * 2)
+                .setBeginTime(LocalDateTime.now())
+                .setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.saveOrUpdate(seckillVoucher);
+        try {
+            // 逐条入库
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < total; i++) {
+                voucherOrderService.createOrder(new VoucherOrder().setId(baseId + i).setUserId((long) i).setVoucherId(voucherId));
+            }
+            long single = System.currentTimeMillis() - begin;
+            // 批量入库
+            begin = System.currentTimeMillis();
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            for (int i = total; i < total * 2; i++) {
+                batch.add(new VoucherOrder().setId(baseId + i).setUserId((long) i).setVoucherId(voucherId));
+                if (batch.size() == batchSize) {
+                    voucherOrderService.createOrders(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                voucherOrderService.createOrders(batch);
+            }
+            long batched = System.currentTimeMillis() - begin;
+            System.out.println("逐条入库: " + total + "单 " + single + "ms " + total * 1000L / Math.max(single, 1) + "单/s");
+            System.out.println("批量入库(" + batchSize + "): " + total + "单 " + batched + "ms " + total * 1000L / Math.max(batched, 1) + "单/s");
+        } finally {
+            voucherOrderService.lambdaUpdate().eq(VoucherOrder::getVoucherId, voucherId).remove();
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    /**
+     * id生成对比：每个id一次INCR vs 号段模式 同时校验号段模式生成的id不重复
+     */
+    @Test
+    void testIdWorkerModes() throws InterruptedException {
+        int threads = 300;
+        int perThread = 1000;
+        try {
+            for (String mode : new String[]{"incr", "segment"}) {
+                ReflectionTestUtils.setField(redisIdWorker, "mode", mode);
+                Set<Long> ids = ConcurrentHashMap.newKeySet();
+                CountDownLatch countDownLatch = new CountDownLatch(threads);
+                long begin = System.currentTimeMillis();
+                for (int t = 0; t < threads; t++) {
+                    service.submit(() -> {
+                        try {
+                            for (int i = 0; i < perThread; i++) {
+                                ids.add(redisIdWorker.nextId("bench:"));
+                            }
+                        } finally {
+                            countDownLatch.countDown();
+                        }
+                    });
+                }
+                countDownLatch.await();
+                long cost = Math.max(System.currentTimeMillis() - begin, 1);
+                int total = threads * perThread;
+                System.out.println("模式:" + mode + " 生成:" + total + " 耗时:" + cost + "ms "
+                        + total * 1000L / cost + "个/s 重复:" + (total - ids.size()));
+                Assertions.assertEquals(total, ids.size());
+            }
+        } finally {
+            ReflectionTestUtils.setField(redisIdWorker, "mode", "incr");
+        }
+    }
+
+    /**
+     * 模拟多个节点同时使用本地id生成器 其中一个节点的时钟不断回拨 校验id不重复
+     */
+    @Test
+    void testSnowflakeIdWorkerUnique() throws InterruptedException {
+        int nodes = 8;
+        int threadsPerNode = 8;
+        int perThread = 50000;
+        List<SnowflakeIdWorker> workers = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes - 1; i++) {
+            workers.add(new SnowflakeIdWorker(i));
+        }
+        // 时钟每10000次调用回拨500毫秒
+        AtomicInteger clockCalls = new AtomicInteger();
+        workers.add(new SnowflakeIdWorker(nodes - 1) {
+            @Override
+            protected long currentMillis() {
+                return System.currentTimeMillis() - (clockCalls.incrementAndGet() / 10000 % 2) * 500L;
+            }
+        });
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch countDownLatch = new CountDownLatch(nodes * threadsPerNode);
+        long begin = System.currentTimeMillis();
+        for (SnowflakeIdWorker worker : workers) {
+            for (int t = 0; t < threadsPerNode; t++) {
+                service.submit(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            ids.add(worker.nextId("order:"));
+                        }
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+            }
+        }
+        countDownLatch.await();
+        long cost = Math.max(System.currentTimeMillis() - begin, 1);
+        int total = nodes * threadsPerNode * perThread;
+        System.out.println("节点:" + nodes + " 生成:" + total + " 耗时:" + cost + "ms " + total * 1000L / cost + "个/s");
+        Assertions.assertEquals(total, ids.size());
+    }
 }
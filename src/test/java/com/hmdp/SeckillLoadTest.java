@@ -0,0 +1,557 @@
+package com.hmdp;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillOrderExpireQueue;
+import com.hmdp.utils.SeckillRedisRouter;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 秒杀全链路压测 seckillVoucher -> stream.orders -> createOrder
+ * 数据库使用H2内存库 redis默认使用随测试启动的redis-server 见application-loadtest.yaml
+ * 运行: mvn test -Dtest=SeckillLoadTest -Dloadtest=true
+ * 库存分片对比: mvn test -Dtest=SeckillLoadTest#testStockShardContention -Dloadtest=true
+ * 可选参数: -Dloadtest.users=5000 -Dloadtest.attempts=2 -Dloadtest.stock=1000 -Dloadtest.threads=200
+ *          -Dloadtest.async-in-flight=1000 (异步接口同时等待结果的请求数)
+ *          -Dloadtest.nodes=3 -Dloadtest.vouchers=12 (启动3个秒杀redis节点 库存分到12张券上 按一致性哈希分布)
+ */
+@SpringBootTest
+@ActiveProfiles("loadtest")
+@DirtiesContext
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class SeckillLoadTest {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillRedisRouter seckillRedisRouter;
+
+    @Resource
+    private SeckillOrderExpireQueue seckillOrderExpireQueue;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    private final int users = Integer.getInteger("loadtest.users", 5000);
+    private final int attempts = Integer.getInteger("loadtest.attempts", 2);
+    private final int stock = Integer.getInteger("loadtest.stock", 1000);
+    private final int threads = Integer.getInteger("loadtest.threads", 200);
+    private final int asyncInFlight = Integer.getInteger("loadtest.async-in-flight", 1000);
+    private final int voucherCount = Integer.getInteger("loadtest.vouchers", 12);
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        // 没有指定redis时 启动内置的redis-server
+        if (StrUtil.isBlank(System.getenv("LOADTEST_REDIS_HOST"))) {
+            int port = Integer.parseInt(StrUtil.blankToDefault(System.getenv("LOADTEST_REDIS_PORT"), "16379"));
+            startRedisServer(port);
+            // 多个秒杀节点时 在后面的端口上各启动一个redis-server
+            int nodes = Integer.getInteger("loadtest.nodes", 1);
+            if (nodes > 1) {
+                List<String> addresses = new ArrayList<>(nodes);
+                for (int i = 1; i <= nodes; i++) {
+                    startRedisServer(port + i);
+                    addresses.add("redis://127.0.0.1:" + (port + i) + "/15");
+                }
+                System.setProperty("hmdp.seckill.nodes", String.join(",", addresses));
+            }
+        }
+    }
+
+    private static void startRedisServer(int port) throws IOException {
+        RedisServer redisServer = new RedisServer(port);
+        redisServer.start();
+        // @DirtiesContext让应用在测试结束时关闭 消费线程正常退出后 再随JVM关闭redis
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                redisServer.stop();
+            } catch (IOException ignored) {
+            }
+        }));
+    }
+
+    @Test
+    void testSeckillPipeline() throws InterruptedException {
+        resetRedis();
+        Long voucherId = addVoucher();
+
+        // 每个用户抢attempts次 打乱顺序 重复请求分散在整个压测过程中
+        int total = users * attempts;
+        long[] requests = new long[total];
+        for (int i = 0; i < total; i++) {
+            requests[i] = 1000L + i % users;
+        }
+        shuffle(requests);
+        long[] latencies = new long[total];
+        Map<Long, AtomicInteger> successByUser = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.submit(() -> {
+                try {
+                    start.await();
+                    int i;
+                    while ((i = next.getAndIncrement()) < total) {
+                        UserDTO user = new UserDTO();
+                        user.setId(requests[i]);
+                        UserHolder.saveUser(user);
+                        long begin = System.nanoTime();
+                        try {
+                            Result result = voucherOrderService.seckillVoucher(voucherId);
+                            if (Boolean.TRUE.equals(result.getSuccess())) {
+                                successByUser.computeIfAbsent(requests[i], k -> new AtomicInteger()).incrementAndGet();
+                            } else {
+                                failures.computeIfAbsent(result.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failures.computeIfAbsent(ExceptionUtil.getSimpleMessage(e), k -> new AtomicInteger()).incrementAndGet();
+                        } finally {
+                            latencies[i] = System.nanoTime() - begin;
+                            UserHolder.removeUser();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long requestNanos = System.nanoTime() - begin;
+        pool.shutdown();
+
+        report("秒杀压测", Collections.singletonList(voucherId), stock, threads,
+                latencies, successByUser, failures, begin, requestNanos);
+    }
+
+    @Test
+    void testAsyncSeckillPipeline() throws InterruptedException {
+        resetRedis();
+        Long voucherId = addVoucher();
+
+        int total = users * attempts;
+        long[] requests = new long[total];
+        for (int i = 0; i < total; i++) {
+            requests[i] = 1000L + i % users;
+        }
+        shuffle(requests);
+        long[] latencies = new long[total];
+        Map<Long, AtomicInteger> successByUser = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        // 单线程发出请求 同时等待结果的请求数不超过asyncInFlight
+        Semaphore inFlight = new Semaphore(asyncInFlight);
+        CountDownLatch done = new CountDownLatch(total);
+        long begin = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            int index = i;
+            inFlight.acquire();
+            UserDTO user = new UserDTO();
+            user.setId(requests[i]);
+            UserHolder.saveUser(user);
+            long requestBegin = System.nanoTime();
+            CompletableFuture<Result> future;
+            try {
+                future = voucherOrderService.seckillVoucherAsync(voucherId);
+            } catch (Exception e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            } finally {
+                UserHolder.removeUser();
+            }
+            future.whenComplete((result, e) -> {
+                latencies[index] = System.nanoTime() - requestBegin;
+                if (e != null) {
+                    failures.computeIfAbsent(ExceptionUtil.getSimpleMessage(e), k -> new AtomicInteger()).incrementAndGet();
+                } else if (Boolean.TRUE.equals(result.getSuccess())) {
+                    successByUser.computeIfAbsent(requests[index], k -> new AtomicInteger()).incrementAndGet();
+                } else {
+                    failures.computeIfAbsent(result.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                }
+                inFlight.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        long requestNanos = System.nanoTime() - begin;
+
+        report("异步秒杀压测", Collections.singletonList(voucherId), stock, asyncInFlight,
+                latencies, successByUser, failures, begin, requestNanos);
+    }
+
+    /**
+     * 库存分到多张券上 每个用户固定抢其中一张 券按一致性哈希分布在各秒杀节点上
+     */
+    @Test
+    void testMultiNodeSeckill() throws InterruptedException {
+        Assumptions.assumeTrue(seckillRedisRouter.isMultiNode(), "未配置多个秒杀节点 -Dloadtest.nodes=3");
+        resetRedis();
+        int stockPerVoucher = stock / voucherCount;
+        List<Long> voucherIds = new ArrayList<>(voucherCount);
+        Map<String, Integer> distribution = new TreeMap<>();
+        for (int i = 0; i < voucherCount; i++) {
+            Long voucherId = addVoucher(stockPerVoucher);
+            voucherIds.add(voucherId);
+            distribution.merge(seckillRedisRouter.route(voucherId).getName(), 1, Integer::sum);
+        }
+        System.out.println("券的分布: " + distribution);
+
+        int total = users * attempts;
+        long[] requests = new long[total];
+        for (int i = 0; i < total; i++) {
+            requests[i] = 1000L + i % users;
+        }
+        shuffle(requests);
+        long[] latencies = new long[total];
+        Map<Long, AtomicInteger> successByUser = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.submit(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < total) {
+                        long userId = requests[i];
+                        UserDTO user = new UserDTO();
+                        user.setId(userId);
+                        UserHolder.saveUser(user);
+                        long requestBegin = System.nanoTime();
+                        try {
+                            Result result = voucherOrderService.seckillVoucher(voucherIds.get((int) (userId % voucherCount)));
+                            if (Boolean.TRUE.equals(result.getSuccess())) {
+                                successByUser.computeIfAbsent(userId, k -> new AtomicInteger()).incrementAndGet();
+                            } else {
+                                failures.computeIfAbsent(result.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failures.computeIfAbsent(ExceptionUtil.getSimpleMessage(e), k -> new AtomicInteger()).incrementAndGet();
+                        } finally {
+                            latencies[i] = System.nanoTime() - requestBegin;
+                            UserHolder.removeUser();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long requestNanos = System.nanoTime() - begin;
+        pool.shutdown();
+
+        report("多节点秒杀压测", voucherIds, stockPerVoucher, threads,
+                latencies, successByUser, failures, begin, requestNanos);
+    }
+
+    /**
+     * 秒杀库存分片对比：1个分片 vs 8个分片 直接执行秒杀脚本 请求数远大于库存
+     * 每轮使用一张新发布的券 售出的订单由消费者正常入库
+     */
+    @Test
+    void testStockShardContention() throws InterruptedException {
+        resetRedis();
+        DefaultRedisScript<String> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("seckillScript.lua"));
+        script.setResultType(String.class);
+        int requests = users * attempts;
+        for (int shards : new int[]{1, 8}) {
+            Long voucherId = addVoucher(stock);
+            // 开始秒杀前调整分片数
+            voucherService.initSeckillStock(voucherId, stock, shards);
+            StringRedisTemplate template = seckillRedisRouter.template(voucherId);
+            AtomicInteger sold = new AtomicInteger();
+            AtomicInteger next = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            long begin = System.currentTimeMillis();
+            for (int t = 0; t < threads; t++) {
+                pool.submit(() -> {
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < requests) {
+                            String result = template.execute(script, Collections.emptyList(),
+                                    voucherId.toString(), String.valueOf(1000L + i),
+                                    String.valueOf(redisIdWorker.nextId("order:")), "", "", "0");
+                            if ("0".equals(result)) {
+                                sold.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            pool.shutdown();
+            long cost = Math.max(System.currentTimeMillis() - begin, 1);
+            System.out.println("分片数:" + shards + " 请求:" + requests + " 耗时:" + cost + "ms "
+                    + requests * 1000L / cost + "次/s 售出:" + sold.get() + "/" + stock);
+            Assertions.assertEquals(stock, sold.get(), "分片数" + shards + "时售出数与库存不符");
+            // 等待订单入库 分片售出的订单与不分片时一样入库
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+            int persisted = 0;
+            while (System.currentTimeMillis() < deadline
+                    && (persisted = voucherOrderService.lambdaQuery().eq(VoucherOrder::getVoucherId, voucherId).count()) < stock) {
+                ThreadUtil.sleep(100);
+            }
+            Assertions.assertEquals(stock, persisted, "分片数" + shards + "时订单未全部入库");
+        }
+    }
+
+    /**
+     * 超时取消 -> 用户重新抢到 -> 重试归还
+     * 重试时新订单还没有入库 已取消的旧订单再次交给归还脚本 不能删掉新的下单记录 也不能多还库存
+     */
+    @Test
+    void testRestoreRetryAfterRebuy() {
+        resetRedis();
+        int voucherStock = 10;
+        Long voucherId = addVoucher(voucherStock);
+        Long userId = 1000L;
+        StringRedisTemplate template = seckillRedisRouter.template(voucherId);
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+
+        Assertions.assertTrue(seckill(voucherId, userId).getSuccess());
+        VoucherOrder first = awaitOrder(voucherId, userId);
+        // 超时取消 第一次归还
+        List<VoucherOrder> cancelled = voucherOrderService.cancelExpiredOrders(Collections.singletonList(first.getId()));
+        Assertions.assertEquals(1, cancelled.size());
+        Assertions.assertEquals(1, seckillOrderExpireQueue.restoreStock(cancelled));
+        Assertions.assertEquals(String.valueOf(voucherStock), template.opsForValue().get(stockKey));
+
+        // 重新抢到 新订单还在队列中
+        Assertions.assertTrue(seckill(voucherId, userId).getSuccess());
+        Assertions.assertEquals(String.valueOf(voucherStock - 1), template.opsForValue().get(stockKey));
+
+        // 重试归还同一批已取消的订单 不归还
+        Assertions.assertEquals(0, seckillOrderExpireQueue.restoreStock(cancelled));
+        Assertions.assertEquals(String.valueOf(voucherStock - 1), template.opsForValue().get(stockKey));
+        Assertions.assertTrue(template.opsForSet().isMember(orderKey, userId.toString()));
+        // 下单记录还在 不能再抢
+        Assertions.assertFalse(seckill(voucherId, userId).getSuccess());
+
+        // 新订单入库后 只有一个未支付的订单
+        VoucherOrder second = awaitOrder(voucherId, userId);
+        Assertions.assertNotEquals(first.getId(), second.getId());
+        Assertions.assertEquals(1, voucherOrderService.lambdaQuery()
+                .eq(VoucherOrder::getVoucherId, voucherId).eq(VoucherOrder::getUserId, userId).count());
+    }
+
+    private Result seckill(Long voucherId, Long userId) {
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    /**
+     * 等待用户的未支付订单入库
+     */
+    private VoucherOrder awaitOrder(Long voucherId, Long userId) {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (System.currentTimeMillis() < deadline) {
+            VoucherOrder voucherOrder = voucherOrderService.lambdaQuery()
+                    .eq(VoucherOrder::getVoucherId, voucherId)
+                    .eq(VoucherOrder::getUserId, userId)
+                    .eq(VoucherOrder::getStatus, SystemConstants.ORDER_STATUS_UNPAID)
+                    .one();
+            if (voucherOrder != null) {
+                return voucherOrder;
+            }
+            ThreadUtil.sleep(50);
+        }
+        throw new AssertionError("订单未入库");
+    }
+
+    /**
+     * 等待订单入库 统计并校验超卖和重复下单
+     */
+    private void report(String title, List<Long> voucherIds, int stockPerVoucher, int concurrency, long[] latencies,
+                        Map<Long, AtomicInteger> successByUser, Map<String, AtomicInteger> failures,
+                        long begin, long requestNanos) {
+        int total = latencies.length;
+        // 等待消费者把抢到的订单全部入库
+        int accepted = successByUser.values().stream().mapToInt(AtomicInteger::get).sum();
+        int persisted = 0;
+        long persistNanos = 0;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        while (System.currentTimeMillis() < deadline) {
+            persisted = voucherOrderService.lambdaQuery().in(VoucherOrder::getVoucherId, voucherIds).count();
+            persistNanos = System.nanoTime() - begin;
+            if (persisted >= accepted) {
+                break;
+            }
+            ThreadUtil.sleep(100);
+        }
+
+        // 超卖: 订单数超过库存 或者库存被扣成负数
+        long oversell = 0;
+        for (Long voucherId : voucherIds) {
+            int orders = voucherOrderService.lambdaQuery().eq(VoucherOrder::getVoucherId, voucherId).count();
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            String redisStock = seckillRedisRouter.template(voucherId).opsForValue()
+                    .get(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            oversell += Math.max(orders - stockPerVoucher, 0)
+                    + Math.max(-seckillVoucher.getStock(), 0)
+                    + Math.max(-Long.parseLong(StrUtil.blankToDefault(redisStock, "0")), 0);
+        }
+        // 重复: 同一用户抢到多次 或者数据库中同一用户有多个订单
+        long duplicate = successByUser.values().stream().filter(c -> c.get() > 1).count()
+                + voucherOrderService.query()
+                .select("voucher_id", "user_id")
+                .in("voucher_id", voucherIds)
+                .groupBy("voucher_id", "user_id")
+                .having("COUNT(*) > 1")
+                .list()
+                .size();
+
+        Arrays.sort(latencies);
+        System.out.println("========== " + title + " ==========");
+        System.out.printf("请求数: %d (用户%d x %d次) 并发数: %d 券数: %d 每张库存: %d%n",
+                total, users, attempts, concurrency, voucherIds.size(), stockPerVoucher);
+        System.out.printf("请求耗时: %d ms  吞吐: %.0f req/s%n",
+                TimeUnit.NANOSECONDS.toMillis(requestNanos), total * 1e9 / requestNanos);
+        System.out.printf("延迟 p50: %.3f ms  p99: %.3f ms  max: %.3f ms%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[total - 1] / 1e6);
+        System.out.printf("抢到: %d  入库: %d  入库速率(从压测开始计): %.0f orders/s%n",
+                accepted, persisted, persisted * 1e9 / persistNanos);
+        System.out.printf("超卖: %d  重复: %d%n", oversell, duplicate);
+        System.out.println("失败原因: " + failures);
+
+        Assertions.assertEquals(0, oversell, "超卖");
+        Assertions.assertEquals(0, duplicate, "重复下单");
+        Assertions.assertEquals(accepted, persisted, "抢到的订单未全部入库");
+    }
+
+    /**
+     * 清空压测使用的redis库 并重建各秒杀节点的消费者组
+     * 保留id自增长的计数 H2中还留着之前测试的订单 计数归零后同一秒内生成的订单id会和它们重复
+     */
+    private void resetRedis() {
+        Map<String, String> increments = new HashMap<>();
+        for (String key : stringRedisTemplate.keys(RedisConstants.ID_INCRMENT_KEY + "*")) {
+            increments.put(key, stringRedisTemplate.opsForValue().get(key));
+        }
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.serverCommands().flushDb();
+            return null;
+        });
+        for (SeckillRedisRouter.Node node : seckillRedisRouter.nodes()) {
+            node.getTemplate().execute((RedisCallback<Object>) connection -> {
+                connection.serverCommands().flushDb();
+                connection.streamCommands().xGroupCreate(
+                        RedisConstants.SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8),
+                        RedisConstants.SECKILL_ORDER_GROUP,
+                        ReadOffset.from("0"),
+                        true
+                );
+                return null;
+            });
+        }
+        if (!increments.isEmpty()) {
+            stringRedisTemplate.opsForValue().multiSet(increments);
+        }
+    }
+
+    private Long addVoucher() {
+        return addVoucher(stock);
+    }
+
+    private Long addVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private static void shuffle(long[] values) {
+        Random random = new Random(42);
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}